@@ -0,0 +1,294 @@
+package TrimProcessV3;
+
+import VERSCommon.VEOFatal;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * B U I L D J O U R N A L
+ *
+ * This class keeps an append-only journal of the VEOs that have been
+ * completely built. A line is added to the journal each time a VEO is
+ * finalised, giving the id of the root TRIM entity, and the size and last
+ * modified time of the VEO (zip) file. When the VEO file is written directly
+ * (-direct) its digest, calculated as it was written, is also recorded; the
+ * VEO file is never read back just to digest it. Each line is forced to disk
+ * before the build is counted as complete. A line is
+ * <pre>
+ *  id TAB size TAB last modified (ms) TAB digest (hex, may be empty) TAB algorithm:digest length
+ * </pre> The last field allows a line that was only partly written to be
+ * recognised.
+ * <p>
+ * When a run is resumed, the journal from the earlier run is read and any
+ * root entity recorded in it is not built again, provided the VEO file is
+ * still present and has the size and last modified time recorded. A VEO
+ * file that has been touched since it was built is digested and kept only
+ * if a digest was recorded and matches; otherwise it is built again. A
+ * partly written line (at the end of the journal when the earlier run
+ * stopped) is ignored. When a run is not resumed, the journal is started
+ * afresh.
+ * <p>
+ * VEOs may be recorded concurrently.
+ */
+final class BuildJournal {
+
+    private final static Logger LOG = Logger.getLogger("TrimProcessV3.TrimProcessV3CSV");
+
+    private final Path file;            // the journal
+    private final String hashAlg;       // algorithm used to digest the VEO files
+    private final HashMap<String, Built> built; // VEOs recorded by an earlier run
+    private final ReentrantLock lock;   // serialises appending to the journal
+    private FileChannel out;            // channel appending to the journal
+
+    /**
+     * Open the journal.
+     *
+     * @param file the journal file
+     * @param hashAlg the algorithm used to digest the VEO files
+     * @param resume true if the VEOs recorded in an existing journal are not
+     * to be built again
+     * @throws VEOFatal if the journal could not be read or opened
+     */
+    BuildJournal(Path file, String hashAlg, boolean resume) throws VEOFatal {
+        byte[] journal;
+        String[] lines, tokens;
+        int i;
+
+        this.file = file;
+        this.hashAlg = hashAlg;
+        built = new HashMap<>();
+        lock = new ReentrantLock();
+        try {
+            MessageDigest.getInstance(hashAlg);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new VEOFatal("Cannot digest VEOs for the build journal: " + nsae.getMessage());
+        }
+        try {
+            if (resume && Files.exists(file)) {
+                journal = Files.readAllBytes(file);
+                lines = new String(journal, StandardCharsets.UTF_8).split("\n");
+                for (i = 0; i < lines.length; i++) {
+                    tokens = lines[i].split("\t");
+                    if (tokens.length != 5 || !tokens[4].equals(hashAlg + ":" + tokens[3].length())) {
+                        if (i < lines.length - 1) {
+                            LOG.log(Level.WARNING, "Ignoring invalid line {0} in build journal ''{1}''", new Object[]{i + 1, file.toString()});
+                        }
+                        continue;
+                    }
+                    try {
+                        built.put(tokens[0], new Built(Long.parseLong(tokens[1]), Long.parseLong(tokens[2]), tokens[3]));
+                    } catch (NumberFormatException nfe) {
+                        LOG.log(Level.WARNING, "Ignoring invalid line {0} in build journal ''{1}''", new Object[]{i + 1, file.toString()});
+                    }
+                }
+                out = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+                // finish off a partly written line so it is not joined to the next
+                if (journal.length > 0 && journal[journal.length - 1] != '\n') {
+                    out.write(ByteBuffer.wrap(new byte[]{'\n'}));
+                }
+            } else {
+                out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            }
+        } catch (IOException ioe) {
+            throw new VEOFatal("Failed opening build journal '" + file.toString() + "': " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Get the number of VEOs recorded by an earlier run
+     *
+     * @return the number of VEOs
+     */
+    int resumable() {
+        return built.size();
+    }
+
+    /**
+     * Test if a VEO was completely built by an earlier run
+     *
+     * @param id the id of the root TRIM entity of the VEO
+     * @param veo the VEO (zip) file
+     * @return true if the VEO does not need to be built again
+     */
+    boolean isBuilt(String id, Path veo) {
+        BasicFileAttributes attr;
+        Built b;
+        long modified;
+
+        b = built.get(id);
+        if (b == null) {
+            return false;
+        }
+        try {
+            attr = Files.readAttributes(veo, BasicFileAttributes.class);
+            if (attr.size() != b.size) {
+                return false;
+            }
+            modified = attr.lastModifiedTime().toMillis();
+            if (modified == b.modified) {
+                return true;
+            }
+
+            // the VEO has been touched since it was built, so check that
+            // its contents have not changed (if its digest is known)
+            if (b.digest.equals("")) {
+                return false;
+            }
+            return hex(digest(veo)).equals(b.digest);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Record that a VEO has been completely built. Only the size and last
+     * modified time of the VEO file are recorded; the file is not read. A
+     * failure to record the VEO is logged, but does not affect the VEO; it
+     * will simply be built again if the run is resumed.
+     *
+     * @param id the id of the root TRIM entity of the VEO
+     * @param veo the VEO (zip) file
+     */
+    void record(String id, Path veo) {
+        BasicFileAttributes attr;
+
+        try {
+            attr = Files.readAttributes(veo, BasicFileAttributes.class);
+        } catch (IOException ioe) {
+            LOG.log(Level.WARNING, "VEO ''{0}'' not recorded in build journal because: {1}", new Object[]{veo.toString(), ioe.getMessage()});
+            return;
+        }
+        append(id, veo, attr.size(), attr.lastModifiedTime().toMillis(), new byte[0]);
+    }
+
+    /**
+     * Record that a VEO has been completely built, when the size and digest
+     * of the VEO file were calculated as it was written (so the VEO file is
+     * not read again).
+     *
+     * @param id the id of the root TRIM entity of the VEO
+     * @param veo the VEO (zip) file
+     * @param size the size of the VEO file
+     * @param digest the digest of the VEO file
+     */
+    void record(String id, Path veo, long size, byte[] digest) {
+        long modified;
+
+        try {
+            modified = Files.getLastModifiedTime(veo).toMillis();
+        } catch (IOException ioe) {
+            LOG.log(Level.WARNING, "VEO ''{0}'' not recorded in build journal because: {1}", new Object[]{veo.toString(), ioe.getMessage()});
+            return;
+        }
+        append(id, veo, size, modified, digest);
+    }
+
+    /**
+     * Append a line to the journal and force it to disk
+     */
+    private void append(String id, Path veo, long size, long modified, byte[] digest) {
+        StringBuilder sb;
+
+        sb = new StringBuilder();
+        sb.append(id);
+        sb.append('\t');
+        sb.append(size);
+        sb.append('\t');
+        sb.append(modified);
+        sb.append('\t');
+        sb.append(hex(digest));
+        sb.append('\t');
+        sb.append(hashAlg);
+        sb.append(':');
+        sb.append(digest.length * 2);
+        sb.append('\n');
+
+        lock.lock();
+        try {
+            out.write(ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8)));
+            out.force(false);
+        } catch (IOException ioe) {
+            LOG.log(Level.WARNING, "VEO ''{0}'' not recorded in build journal ''{1}'' because: {2}", new Object[]{veo.toString(), file.toString(), ioe.getMessage()});
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Close the journal
+     */
+    void close() {
+        lock.lock();
+        try {
+            out.close();
+        } catch (IOException ioe) {
+            LOG.log(Level.WARNING, "Failed closing build journal ''{0}'': {1}", new Object[]{file.toString(), ioe.getMessage()});
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Digest a VEO file
+     */
+    private byte[] digest(Path veo) throws IOException, NoSuchAlgorithmException {
+        MessageDigest md;
+        byte[] buf;
+        int i;
+
+        md = MessageDigest.getInstance(hashAlg);
+        buf = new byte[64 * 1024];
+        try (InputStream is = Files.newInputStream(veo)) {
+            while ((i = is.read(buf)) != -1) {
+                md.update(buf, 0, i);
+            }
+        }
+        return md.digest();
+    }
+
+    /**
+     * Convert a digest to hexadecimal
+     */
+    private static String hex(byte[] digest) {
+        StringBuilder sb;
+        int i;
+
+        sb = new StringBuilder();
+        for (i = 0; i < digest.length; i++) {
+            sb.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(digest[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A VEO recorded by an earlier run
+     */
+    private static final class Built {
+
+        final long size;            // size of the VEO file
+        final long modified;        // last modified time of the VEO file (ms since the epoch)
+        final String digest;        // digest of the VEO file (hex)
+
+        Built(long size, long modified, String digest) {
+            this.size = size;
+            this.modified = modified;
+            this.digest = digest;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package TrimProcessV3;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * B U I L D S T A G E
+ *
+ * This class is one stage of the pipeline that builds VEOs concurrently (e.g.
+ * signing). Each stage has its own pool of threads, and a bounded queue of
+ * VEOs waiting for the stage. When the queue is full, the stage before it
+ * waits until there is room, so a slow stage holds back the stages before it
+ * rather than letting partly built VEOs pile up in memory.
+ * <p>
+ * The stage keeps statistics so that the pipeline can be tuned: the time its
+ * threads were busy, the depth of its queue when each VEO was added, and the
+ * time the stage before it spent waiting for room in the queue.
+ * <p>
+ * VEOs may be submitted concurrently.
+ */
+final class BuildStage {
+
+    private final static Logger LOG = Logger.getLogger("TrimProcessV3.TrimProcessV3CSV");
+
+    private final String name;          // name of the stage (for reporting)
+    private final int threads;          // number of threads running the stage
+    private final int depth;            // maximum number of VEOs waiting for the stage
+    private final ThreadPoolExecutor pool; // threads running the stage
+    private final Semaphore room;       // VEOs that can be queued before the stage is full
+    private final LongAdder runs;       // number of VEOs that have been through the stage
+    private final LongAdder busy;       // total time (ns) the threads were busy
+    private final LongAdder blocked;    // total time (ns) spent waiting for room in the queue
+    private final LongAdder queued;     // sum of the queue depths when VEOs were added
+    private final AtomicInteger maxQueued; // deepest the queue has been
+
+    /**
+     * Create a stage.
+     *
+     * @param name the name of the stage
+     * @param threads the number of threads running the stage
+     * @param depth the maximum number of VEOs waiting for the stage
+     */
+    BuildStage(String name, int threads, int depth) {
+        this.name = name;
+        this.threads = threads;
+        this.depth = depth;
+        pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(depth));
+        room = new Semaphore(depth);
+        runs = new LongAdder();
+        busy = new LongAdder();
+        blocked = new LongAdder();
+        queued = new LongAdder();
+        maxQueued = new AtomicInteger();
+    }
+
+    /**
+     * Add a VEO to the stage, waiting until there is room in the queue.
+     *
+     * @param task the work of the stage for the VEO
+     * @throws InterruptedException if interrupted while waiting for room
+     */
+    void submit(Runnable task) throws InterruptedException {
+        long start;
+        int n;
+
+        start = System.nanoTime();
+        room.acquire();
+        blocked.add(System.nanoTime() - start);
+        try {
+            pool.execute(() -> run(task));
+        } catch (RejectedExecutionException ree) {
+            room.release();
+            throw ree;
+        }
+        n = pool.getQueue().size();
+        queued.add(n);
+        maxQueued.accumulateAndGet(n, Math::max);
+    }
+
+    /**
+     * Run the stage for one VEO on one of the threads of the stage
+     */
+    private void run(Runnable task) {
+        long start;
+
+        // the VEO has left the queue
+        room.release();
+        start = System.nanoTime();
+        try {
+            task.run();
+        } finally {
+            busy.add(System.nanoTime() - start);
+            runs.increment();
+        }
+    }
+
+    /**
+     * Stop the threads once the VEOs already added have been through the
+     * stage
+     */
+    void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Log the statistics of the stage
+     *
+     * @param elapsed the time (ns) VEOs were being built (used to calculate
+     * the utilisation of the threads)
+     */
+    void report(long elapsed) {
+        long n;
+
+        n = runs.sum();
+        LOG.log(Level.SEVERE, "Pipeline stage ''{0}'': {1} VEOs, {2} threads {3}% busy, queue depth mean {4} max {5} (limit {6}), {7} s waiting for room",
+                new Object[]{name, n, threads, elapsed > 0 ? Math.round(100.0 * busy.sum() / ((double) elapsed * threads)) : 0,
+                    String.format("%.1f", n > 0 ? (double) queued.sum() / n : 0.0), maxQueued.get(), depth, String.format("%.1f", blocked.sum() / 1e9)});
+    }
+}
@@ -0,0 +1,132 @@
+package TrimProcessV3;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ *
+ * C O L U M N D I C T I O N A R Y
+ *
+ * This class stores the values of one column of a TRIM export. Each row
+ * keeps an integer code, and the value is obtained from the dictionary using
+ * the code.
+ * <p>
+ * The dictionary starts by storing each distinct value once, looking up the
+ * text of the value read from the export to find the code of a value already
+ * seen. This suits columns such as the record type or classification where a
+ * small number of values are repeated across many rows. After SAMPLE values
+ * have been added, if the ratio of distinct values to rows is above
+ * MAX_RATIO, the column is not worth encoding; the lookup table is discarded
+ * and from then on each value is simply appended (and given a new code).
+ * <p>
+ * The text read from the export is converted into the stored value by a
+ * function supplied when a value is added (e.g. mapping a record type to its
+ * description). In dictionary mode the conversion is only done once for each
+ * distinct value.
+ * <p>
+ * Values may be added and read concurrently.
+ *
+ * @param <V> the type of the stored values
+ */
+final class ColumnDictionary<V> {
+
+    private final static int SAMPLE = 4096; // values added before deciding whether to keep encoding
+    private final static double MAX_RATIO = 0.25; // ratio of distinct values to rows above which encoding stops
+
+    private final String name;          // name of the column (for reporting)
+    private volatile ConcurrentHashMap<String, Integer> codes; // code of each value seen (null if not encoding)
+    private volatile Object[] values;   // values indexed by code
+    private int size;                   // number of values stored
+    private final LongAdder rows;       // number of rows added
+    private final ReentrantLock lock;   // held while a value is added
+
+    /**
+     * Create an empty dictionary.
+     *
+     * @param name the name of the column (for reporting)
+     */
+    ColumnDictionary(String name) {
+        this.name = name;
+        codes = new ConcurrentHashMap<>();
+        values = new Object[64];
+        size = 0;
+        rows = new LongAdder();
+        lock = new ReentrantLock();
+    }
+
+    /**
+     * Add the value of a column in a row, returning the code to be kept in
+     * the row.
+     *
+     * @param text the text of the value read from the export
+     * @param convert function to convert the text into the stored value
+     * @return the code of the value
+     */
+    int add(String text, Function<String, V> convert) {
+        ConcurrentHashMap<String, Integer> m;
+        Integer code;
+        V v;
+
+        // usual case; the value has been seen before
+        rows.increment();
+        m = codes;
+        if (m != null && (code = m.get(text)) != null) {
+            return code;
+        }
+
+        // otherwise convert it and add it. The conversion is done outside
+        // the lock; if another thread adds the same value first, its code is
+        // used
+        v = convert.apply(text);
+        lock.lock();
+        try {
+            m = codes;
+            if (m != null && (code = m.get(text)) != null) {
+                return code;
+            }
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size] = v;
+            code = size;
+            size++;
+            if (m != null) {
+                m.put(text, code);
+                if (rows.sum() >= SAMPLE && (double) size / rows.sum() > MAX_RATIO) {
+                    codes = null;
+                }
+            }
+            return code;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the value for a code
+     *
+     * @param code the code kept in the row
+     * @return the value
+     */
+    @SuppressWarnings("unchecked")
+    V get(int code) {
+        return (V) values[code];
+    }
+
+    /**
+     * Describe how the column has been stored (for the run summary)
+     *
+     * @return a description
+     */
+    String describe() {
+        lock.lock();
+        try {
+            return "'" + name + "' " + (codes != null ? "dictionary encoded" : "not encoded") + ": " + size + " values for " + rows.sum() + " rows";
+        } finally {
+            lock.unlock();
+        }
+    }
+}
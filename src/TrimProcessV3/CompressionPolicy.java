@@ -0,0 +1,260 @@
+package TrimProcessV3;
+
+import VERSCommon.VEOFatal;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+/**
+ *
+ * C O M P R E S S I O N P O L I C Y
+ *
+ * This class decides whether a content file is stored in a VEO zip file as
+ * is, or deflated. Most content (PDF, JPEG, and the Office Open XML formats)
+ * is already compressed and barely shrinks when deflated, so deflating it
+ * just costs CPU. A content file is stored if its file extension is listed as
+ * incompressible and (if magic numbers are given for the extension) the file
+ * starts with one of them; all other files are deflated. The magic numbers
+ * stop a misnamed file (e.g. a text file called '.pdf') being stored.
+ * <p>
+ * The policy is read from 'compression.txt' in the support directory (next
+ * to 'validLTSF.txt'). Each line is
+ * <pre>
+ *  extension TAB store|deflate [TAB magic number (hex) [, magic number]*]
+ * </pre> Blank lines, and lines starting with '!', are ignored. If the file
+ * does not exist, a built in policy is used that stores PDF, JPEG, PNG, GIF,
+ * the Office Open XML and OpenDocument formats, and common archive, audio
+ * and video formats.
+ * <p>
+ * The policy also keeps statistics so that the effect of storing files can
+ * be reported: the CPU time saved is estimated from the CPU time used per
+ * byte deflated, and the change in size is estimated by deflating the first
+ * block of each file stored.
+ * <p>
+ * The policy may be used concurrently.
+ */
+final class CompressionPolicy {
+
+    private final static Logger LOG = Logger.getLogger("TrimProcessV3.TrimProcessV3CSV");
+    private final static String[] DEFAULT = {
+        ".pdf\tstore\t255044462D",
+        ".jpg\tstore\tFFD8FF",
+        ".jpeg\tstore\tFFD8FF",
+        ".png\tstore\t89504E470D0A1A0A",
+        ".gif\tstore\t474946383761,474946383961",
+        ".docx\tstore\t504B0304",
+        ".xlsx\tstore\t504B0304",
+        ".pptx\tstore\t504B0304",
+        ".odt\tstore\t504B0304",
+        ".ods\tstore\t504B0304",
+        ".odp\tstore\t504B0304",
+        ".zip\tstore\t504B0304",
+        ".gz\tstore\t1F8B",
+        ".mp3\tstore",
+        ".mp4\tstore",
+        ".m4a\tstore"
+    };
+    final static int SAMPLE = 64 * 1024; // bytes of a stored file deflated to estimate the size saved
+
+    private final HashMap<String, byte[][]> store; // extensions of files to store, with their magic numbers
+    private final ThreadMXBean threads; // used to measure CPU time
+    private final LongAdder storedFiles; // files stored
+    private final LongAdder storedBytes; // bytes stored
+    private final LongAdder sampleIn;   // bytes of stored files deflated as a sample
+    private final LongAdder sampleOut;  // size of the samples when deflated
+    private final LongAdder deflatedFiles; // content files deflated
+    private final LongAdder deflatedIn; // bytes of content files deflated
+    private final LongAdder deflatedOut; // size of the content files when deflated
+    private final LongAdder deflateCPU; // CPU time spent deflating content files (ns)
+
+    /**
+     * Read the compression policy
+     *
+     * @param file the policy file (the built in policy is used if it does not
+     * exist)
+     * @throws VEOFatal if the policy file could not be read, or is invalid
+     */
+    CompressionPolicy(Path file) throws VEOFatal {
+        List<String> lines;
+        int i;
+
+        store = new HashMap<>();
+        if (Files.exists(file)) {
+            try {
+                lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            } catch (IOException ioe) {
+                throw new VEOFatal("Failed reading compression policy '" + file.toString() + "': " + ioe.getMessage());
+            }
+            LOG.log(Level.INFO, "Compression policy read from ''{0}''", new Object[]{file.toString()});
+        } else {
+            lines = new ArrayList<>();
+            for (i = 0; i < DEFAULT.length; i++) {
+                lines.add(DEFAULT[i]);
+            }
+            LOG.log(Level.INFO, "Compression policy ''{0}'' does not exist; using the built in policy", new Object[]{file.toString()});
+        }
+        for (i = 0; i < lines.size(); i++) {
+            parse(file, i + 1, lines.get(i));
+        }
+        threads = ManagementFactory.getThreadMXBean();
+        if (threads.isCurrentThreadCpuTimeSupported() && !threads.isThreadCpuTimeEnabled()) {
+            threads.setThreadCpuTimeEnabled(true);
+        }
+        storedFiles = new LongAdder();
+        storedBytes = new LongAdder();
+        sampleIn = new LongAdder();
+        sampleOut = new LongAdder();
+        deflatedFiles = new LongAdder();
+        deflatedIn = new LongAdder();
+        deflatedOut = new LongAdder();
+        deflateCPU = new LongAdder();
+    }
+
+    /**
+     * Parse one line of the policy
+     */
+    private void parse(Path file, int line, String s) throws VEOFatal {
+        String[] tokens, magics;
+        byte[][] magic;
+        int i, j;
+
+        s = s.trim();
+        if (s.equals("") || s.startsWith("!")) {
+            return;
+        }
+        tokens = s.split("\t");
+        if (tokens.length < 2 || tokens.length > 3 || !tokens[0].trim().startsWith(".")) {
+            throw new VEOFatal("Invalid line " + line + " in compression policy '" + file.toString() + "': " + s);
+        }
+        switch (tokens[1].trim().toLowerCase(Locale.ROOT)) {
+            case "store":
+                break;
+            case "deflate":
+                store.remove(tokens[0].trim().toLowerCase(Locale.ROOT));
+                return;
+            default:
+                throw new VEOFatal("Invalid line " + line + " in compression policy '" + file.toString() + "': expected 'store' or 'deflate', not '" + tokens[1] + "'");
+        }
+        if (tokens.length == 2) {
+            magic = new byte[0][];
+        } else {
+            magics = tokens[2].split(",");
+            magic = new byte[magics.length][];
+            for (i = 0; i < magics.length; i++) {
+                magics[i] = magics[i].trim();
+                if (magics[i].length() == 0 || magics[i].length() % 2 != 0) {
+                    throw new VEOFatal("Invalid line " + line + " in compression policy '" + file.toString() + "': invalid magic number '" + magics[i] + "'");
+                }
+                magic[i] = new byte[magics[i].length() / 2];
+                for (j = 0; j < magic[i].length; j++) {
+                    try {
+                        magic[i][j] = (byte) Integer.parseInt(magics[i].substring(j * 2, j * 2 + 2), 16);
+                    } catch (NumberFormatException nfe) {
+                        throw new VEOFatal("Invalid line " + line + " in compression policy '" + file.toString() + "': invalid magic number '" + magics[i] + "'");
+                    }
+                }
+            }
+        }
+        store.put(tokens[0].trim().toLowerCase(Locale.ROOT), magic);
+    }
+
+    /**
+     * Get the magic numbers of the files with an extension that are to be
+     * stored. The policy is looked up once for each extension when the
+     * content types are classified (see ContentTypes).
+     *
+     * @param extension the file extension (lower case, including the '.')
+     * @return the magic numbers (empty if all files with the extension are
+     * stored), or null if files with the extension are deflated
+     */
+    byte[][] magic(String extension) {
+        return store.get(extension);
+    }
+
+    /**
+     * Get the CPU time used by the current thread, for measuring the time
+     * spent deflating
+     *
+     * @return the CPU time (ns), or the elapsed time if the CPU time is not
+     * available
+     */
+    long cpuTime() {
+        if (threads.isCurrentThreadCpuTimeSupported()) {
+            return threads.getCurrentThreadCpuTime();
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Record that a content file was stored
+     *
+     * @param size the size of the file
+     * @param head a buffer containing the first block of the file (deflated to
+     * estimate the size that would have been saved)
+     * @param len the number of bytes in the buffer
+     */
+    void stored(long size, byte[] head, int len) {
+        Deflater d;
+        byte[] out;
+        long n;
+
+        storedFiles.increment();
+        storedBytes.add(size);
+        if (len <= 0) {
+            return;
+        }
+        d = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        out = new byte[8 * 1024];
+        try {
+            d.setInput(head, 0, len);
+            d.finish();
+            n = 0;
+            while (!d.finished()) {
+                n += d.deflate(out);
+            }
+        } finally {
+            d.end();
+        }
+        sampleIn.add(len);
+        sampleOut.add(n);
+    }
+
+    /**
+     * Record that a content file was deflated
+     *
+     * @param size the size of the file
+     * @param compressed the size of the file when deflated
+     * @param cpu the CPU time taken to read and deflate the file (ns)
+     */
+    void deflated(long size, long compressed, long cpu) {
+        deflatedFiles.increment();
+        deflatedIn.add(size);
+        deflatedOut.add(compressed);
+        deflateCPU.add(cpu);
+    }
+
+    /**
+     * Log the effect of the policy
+     */
+    void report() {
+        double nsPerByte, ratio;
+
+        nsPerByte = deflatedIn.sum() > 0 ? (double) deflateCPU.sum() / deflatedIn.sum() : 0;
+        ratio = sampleIn.sum() > 0 ? (double) sampleOut.sum() / sampleIn.sum() : 1;
+        LOG.log(Level.SEVERE, "Compression: {0} content files ({1} MB) stored, {2} content files ({3} MB) deflated to {4} MB",
+                new Object[]{storedFiles.sum(), storedBytes.sum() / (1024 * 1024), deflatedFiles.sum(), deflatedIn.sum() / (1024 * 1024), deflatedOut.sum() / (1024 * 1024)});
+        LOG.log(Level.SEVERE, "Compression: storing saved an estimated {0} s of CPU time, and changed the size of the VEOs by an estimated {1} MB",
+                new Object[]{String.format("%.1f", storedBytes.sum() * nsPerByte / 1e9), String.format("%+d", (long) (storedBytes.sum() * (1 - ratio)) / (1024 * 1024))});
+    }
+}
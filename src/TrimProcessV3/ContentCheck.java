@@ -0,0 +1,219 @@
+package TrimProcessV3;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * C O N T E N T C H E C K
+ *
+ * This class checks the content files referenced by the TRIM entities before
+ * any VEO is built. Without this check a missing or unreadable content file
+ * is only found when it is added to a VEO, and the partly built VEO (and all
+ * the hashing already done for it) is abandoned.
+ * <p>
+ * Each distinct content file is checked once, on a pool of threads (the
+ * checks mostly wait on the file system, particularly when the content is on
+ * a network share). A content file passes if it is in the content index, it
+ * can be opened and read, and its size is still the size recorded in the
+ * index. Files checked for an earlier export file are not checked again.
+ * <p>
+ * The problems found are recorded against the TRIM entities that reference
+ * the content files, and are written to a tab separated report at the end of
+ * the run. Problems may be recorded concurrently.
+ */
+final class ContentCheck {
+
+    private final static Logger LOG = Logger.getLogger("TrimProcessV3.TrimProcessV3CSV");
+
+    private final ContentIndex index;   // index of the content directory
+    private final ConcurrentHashMap<String, String> checked; // result of checking each content file ("" if no problem)
+    private final ArrayList<String> problems; // lines of the problem report
+    private int excluded;               // number of roots excluded because of problems
+    private long checkTime;             // time taken checking content files (ms)
+    private final ReentrantLock lock;   // protects the problems and the excluded count
+
+    /**
+     * Create a checker.
+     *
+     * @param index the index of the content directory
+     */
+    ContentCheck(ContentIndex index) {
+        this.index = index;
+        checked = new ConcurrentHashMap<>();
+        problems = new ArrayList<>();
+        excluded = 0;
+        checkTime = 0;
+        lock = new ReentrantLock();
+    }
+
+    /**
+     * Check a list of content files. The files not checked before are checked
+     * concurrently on the pool; this method waits until they have all been
+     * checked.
+     *
+     * @param names the names of the content files (relative to the content
+     * directory). A name may appear more than once.
+     * @param pool the pool of threads to check the files on
+     * @return the problem with each file, or null if it has no problem
+     * @throws InterruptedException if interrupted while waiting for the checks
+     */
+    String[] check(String[] names, ExecutorService pool) throws InterruptedException {
+        ArrayList<Callable<String>> tasks;
+        ArrayList<String> toCheck;
+        List<Future<String>> results;
+        String[] found;
+        String s;
+        long start;
+        int i;
+
+        start = System.currentTimeMillis();
+
+        // find the distinct files that have not already been checked
+        toCheck = new ArrayList<>();
+        for (i = 0; i < names.length; i++) {
+            if (names[i] != null && checked.putIfAbsent(names[i], "") == null) {
+                toCheck.add(names[i]);
+            }
+        }
+
+        // check them
+        tasks = new ArrayList<>(toCheck.size());
+        for (i = 0; i < toCheck.size(); i++) {
+            final String name = toCheck.get(i);
+            tasks.add(() -> problem(name));
+        }
+        results = pool.invokeAll(tasks);
+        for (i = 0; i < results.size(); i++) {
+            try {
+                s = results.get(i).get();
+            } catch (ExecutionException ee) {
+                s = "could not be checked: " + ee.getCause().toString();
+            }
+            checked.put(toCheck.get(i), s == null ? "" : s);
+        }
+
+        // return the problem with each of the names asked about
+        found = new String[names.length];
+        for (i = 0; i < names.length; i++) {
+            if (names[i] != null && !(s = checked.get(names[i])).equals("")) {
+                found[i] = s;
+            }
+        }
+        checkTime += System.currentTimeMillis() - start;
+        LOG.log(Level.FINE, "Checked {0} content files in {1} ms", new Object[]{toCheck.size(), System.currentTimeMillis() - start});
+        return found;
+    }
+
+    /**
+     * Check one content file
+     *
+     * @param name the name of the content file
+     * @return the problem with the file, or null if it has none
+     */
+    private String problem(String name) {
+        ContentIndex.Entry e;
+        long size;
+
+        e = index.find(name);
+        if (e == null) {
+            return "not in content directory";
+        }
+        try (FileChannel fc = FileChannel.open(e.path, StandardOpenOption.READ)) {
+            size = fc.size();
+            if (size != e.size) {
+                return "size changed from " + e.size + " to " + size + " bytes";
+            }
+            if (size > 0 && fc.read(ByteBuffer.allocate(1)) != 1) {
+                return "could not be read";
+            }
+        } catch (IOException ioe) {
+            return "could not be read: " + ioe.toString();
+        }
+        return null;
+    }
+
+    /**
+     * Record a problem with the content file of a TRIM entity
+     *
+     * @param id the id of the TRIM entity
+     * @param root the id of the root TRIM entity of the VEO it would be in
+     * (empty if it is in no VEO because its containers loop)
+     * @param name the name of the content file
+     * @param problem the problem with the content file
+     */
+    void record(String id, String root, String name, String problem) {
+        lock.lock();
+        try {
+            problems.add(id + "\t" + root + "\t" + name + "\t" + problem);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record that a root TRIM entity was excluded because of problems with
+     * its content files
+     */
+    void excluded() {
+        lock.lock();
+        try {
+            excluded++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Log the results of the checks
+     */
+    void report() {
+        lock.lock();
+        try {
+            LOG.log(Level.SEVERE, "Content check: {0} files checked in {1} ms, {2} TRIM entities with content problems, {3} VEOs not built because of them",
+                    new Object[]{checked.size(), checkTime, problems.size(), excluded});
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write a tab separated report of the problems found. Each line gives the
+     * id of the TRIM entity, the root of the VEO it would be in (blank if
+     * none), the content file, and the problem.
+     *
+     * @param file the report to write
+     */
+    void write(Path file) {
+        int i;
+
+        lock.lock();
+        try (BufferedWriter bw = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            bw.write("ID\tRoot\tContent file\tProblem\r\n");
+            for (i = 0; i < problems.size(); i++) {
+                bw.write(problems.get(i));
+                bw.write("\r\n");
+            }
+        } catch (IOException ioe) {
+            System.out.println("Error creating content problem report (" + file.toString() + "): " + ioe.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+}
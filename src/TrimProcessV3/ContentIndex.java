@@ -0,0 +1,167 @@
+package TrimProcessV3;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * C O N T E N T I N D E X
+ *
+ * This class is an index of the files in the content directory, built by
+ * walking the directory once when the run starts. Each file is indexed by its
+ * path relative to the content directory, and the index records its actual
+ * path, size and last modified time. Looking up a content file is then a
+ * memory lookup rather than a round trip to the file system, which is slow
+ * when the content is on a network share.
+ * <p>
+ * The output directory is not indexed (it is often the same as, or within,
+ * the content directory), nor are any VEO directories left in it.
+ * <p>
+ * Names are matched with either '/' or '\' as the separator. Optionally,
+ * names are matched ignoring case (the actual path of the file is returned,
+ * so the name in the export need not match the case of the file). If two
+ * files differ only in case, the first found is used.
+ * <p>
+ * The index is not changed after it is built, so it may be read
+ * concurrently.
+ */
+final class ContentIndex {
+
+    private final static Logger LOG = Logger.getLogger("TrimProcessV3.TrimProcessV3CSV");
+
+    private final Path directory;       // the content directory
+    private final boolean ignoreCase;   // true if names are matched ignoring case
+    private final HashMap<String, Entry> files; // files in the directory (by relative name)
+    private final long buildTime;       // time taken to walk the directory (ms)
+
+    /**
+     * Build the index by walking the content directory.
+     *
+     * @param directory the content directory
+     * @param output the output directory (not indexed)
+     * @param ignoreCase true if names are to be matched ignoring case
+     * @throws IOException if the directory could not be walked
+     */
+    ContentIndex(Path directory, Path output, boolean ignoreCase) throws IOException {
+        Path out;
+        long start;
+
+        this.directory = directory.toAbsolutePath().normalize();
+        this.ignoreCase = ignoreCase;
+        files = new HashMap<>();
+        out = output.toAbsolutePath().normalize();
+        start = System.currentTimeMillis();
+        Files.walkFileTree(this.directory, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attr) {
+                if (dir.equals(ContentIndex.this.directory)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                if (dir.equals(out) || (out.equals(dir.getParent()) && dir.getFileName().toString().endsWith(".veo"))) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attr) {
+                String key;
+
+                if (!attr.isRegularFile()) {
+                    return FileVisitResult.CONTINUE;
+                }
+                key = key(ContentIndex.this.directory.relativize(file).toString());
+                if (files.containsKey(key)) {
+                    LOG.log(Level.WARNING, "Content file ''{0}'' ignored as it has the same name as ''{1}''", new Object[]{file.toString(), files.get(key).path.toString()});
+                    return FileVisitResult.CONTINUE;
+                }
+                files.put(key, new Entry(file, attr.size(), attr.lastModifiedTime().toMillis()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException ioe) {
+                LOG.log(Level.WARNING, "Could not index content file ''{0}'': {1}", new Object[]{file.toString(), ioe.getMessage()});
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        buildTime = System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Find a content file
+     *
+     * @param name the name of the file (relative to the content directory)
+     * @return the file, or null if it is not in the content directory
+     */
+    Entry find(String name) {
+        return files.get(key(directory.relativize(directory.resolve(name).normalize()).toString()));
+    }
+
+    int size() {
+        return files.size();
+    }
+
+    long buildTime() {
+        return buildTime;
+    }
+
+    /**
+     * Get the distinct file extensions of the files in the index (as found,
+     * including the '.')
+     *
+     * @return the extensions
+     */
+    HashSet<String> extensions() {
+        HashSet<String> exts;
+        Iterator<Entry> it;
+        String name;
+        int i;
+
+        exts = new HashSet<>();
+        it = files.values().iterator();
+        while (it.hasNext()) {
+            name = it.next().path.getFileName().toString();
+            if ((i = name.lastIndexOf('.')) != -1) {
+                exts.add(name.substring(i));
+            }
+        }
+        return exts;
+    }
+
+    /**
+     * Convert a relative name to the key used in the index
+     */
+    private String key(String name) {
+        name = name.replace('\\', '/');
+        return ignoreCase ? name.toLowerCase(Locale.ROOT) : name;
+    }
+
+    /**
+     * A file in the content directory
+     */
+    static final class Entry {
+
+        final Path path;            // actual path of the file
+        final long size;            // size of the file
+        final long modified;        // last modified time (ms since the epoch)
+
+        Entry(Path path, long size, long modified) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+}
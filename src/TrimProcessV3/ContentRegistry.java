@@ -0,0 +1,197 @@
+package TrimProcessV3;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * C O N T E N T R E G I S T R Y
+ *
+ * This class keeps a record of the content files referenced by the TRIM
+ * entities in this run. Several TRIM entities often refer to the same content
+ * file (the 'DOS file' column). The first reference to a content file
+ * resolves its path and finds its size (using the content index, if there is
+ * one); later references, from the same VEO or from any other VEO being
+ * built concurrently, reuse these. Referencing a content file does not read
+ * it.
+ * <p>
+ * Sharing the resolution does not stop a content file being read again:
+ * CreateVEO reads and hashes the file for every reference, as it cannot be
+ * given a digest. The number of repeated references (each of which is read
+ * and hashed again) is reported at the end of the run.
+ * <p>
+ * At the end of the run a list of the content files is written, giving the
+ * size and number of references of each.
+ * <p>
+ * Content files may be referenced concurrently. Each content file has its own
+ * lock, held while it is first resolved.
+ */
+final class ContentRegistry {
+
+    private final static Logger LOG = Logger.getLogger("TrimProcessV3.TrimProcessV3CSV");
+
+    private final Path contentDirectory; // directory the content file names are relative to
+    private final ContentIndex index;   // index of the content directory (null if not indexed)
+    private final ConcurrentHashMap<String, Content> contents; // content files (by normalised path)
+    private final LongAdder references; // number of references to content files
+
+    /**
+     * Create an empty registry.
+     *
+     * @param contentDirectory the directory the content file names are
+     * relative to
+     * @param index the index of the content directory (null if not indexed)
+     */
+    ContentRegistry(Path contentDirectory, ContentIndex index) {
+        this.contentDirectory = contentDirectory;
+        this.index = index;
+        contents = new ConcurrentHashMap<>();
+        references = new LongAdder();
+    }
+
+    /**
+     * Reference a content file. The first time a file is referenced it is
+     * resolved; after that the earlier results are returned.
+     *
+     * @param name the name of the content file (relative to the content
+     * directory)
+     * @return the content file
+     */
+    Content reference(String name) {
+        ContentIndex.Entry ie;
+        Path p;
+        Content c;
+
+        // find the file in the index, if there is one. A file that is not
+        // in the index is looked for where it would have been
+        ie = index != null ? index.find(name) : null;
+        p = ie != null ? ie.path : contentDirectory.resolve(name).normalize();
+        c = contents.computeIfAbsent(p.toString(), k -> new Content(p));
+        references.increment();
+        c.lock.lock();
+        try {
+            c.references++;
+            if (c.references > 1) {
+                return c;
+            }
+            if (ie == null && index != null) {
+                c.error = "not found in content directory";
+                return c;
+            }
+            try {
+                c.size = ie != null ? ie.size : Files.size(p);
+            } catch (IOException e) {
+                c.error = e.toString();
+                LOG.log(Level.FINE, "Content file ''{0}'' could not be read: {1}", new Object[]{p.toString(), c.error});
+            }
+        } finally {
+            c.lock.unlock();
+        }
+        return c;
+    }
+
+    /**
+     * Register a content file generated by this program (e.g. the dummy
+     * content file added when a content file is not in a long term
+     * sustainable format), whose size is already known.
+     *
+     * @param p the generated file
+     * @param size the size of the file
+     * @return the content file
+     */
+    Content register(Path p, long size) {
+        Content c;
+
+        c = new Content(p);
+        c.size = size;
+        contents.put(p.toString(), c);
+        return c;
+    }
+
+    /**
+     * Reference a registered content file again
+     *
+     * @param c the content file
+     */
+    void reference(Content c) {
+        references.increment();
+        c.lock.lock();
+        try {
+            c.references++;
+        } finally {
+            c.lock.unlock();
+        }
+    }
+
+    /**
+     * Log the use of the content files
+     */
+    void report() {
+        LOG.log(Level.SEVERE, "Content files: {0} referenced {1} times ({2} repeated references, each read and hashed again by CreateVEO)",
+                new Object[]{contents.size(), references.sum(), references.sum() - contents.size()});
+    }
+
+    /**
+     * Write a tab separated list of the content files referenced. Each line
+     * gives the path, size, and number of references of a content file, and
+     * why it could not be read (blank if it could).
+     *
+     * @param file the list to write
+     */
+    void write(Path file) {
+        ArrayList<String> paths;
+        Content c;
+        int i;
+
+        paths = new ArrayList<>(contents.keySet());
+        Collections.sort(paths);
+        try (BufferedWriter bw = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            bw.write("Path\tSize\tReferences\tProblem\r\n");
+            for (i = 0; i < paths.size(); i++) {
+                c = contents.get(paths.get(i));
+                c.lock.lock();
+                try {
+                    bw.write(paths.get(i) + "\t" + c.size + "\t" + c.references + "\t");
+                    if (c.error != null) {
+                        bw.write("Not read: " + c.error);
+                    }
+                    bw.write("\r\n");
+                } finally {
+                    c.lock.unlock();
+                }
+            }
+        } catch (IOException ioe) {
+            System.out.println("Error creating content report (" + file.toString() + "): " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * A content file referenced by one or more TRIM entities
+     */
+    static final class Content {
+
+        final Path path;            // resolved path of the content file
+        long size;                  // size of the file (-1 if it could not be read)
+        String error;               // why the file could not be read
+        int references;             // number of references to the file
+        final ReentrantLock lock;   // protects the fields above
+
+        Content(Path path) {
+            this.path = path;
+            lock = new ReentrantLock();
+            size = -1;
+            error = null;
+            references = 0;
+        }
+    }
+}
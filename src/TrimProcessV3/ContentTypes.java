@@ -0,0 +1,191 @@
+package TrimProcessV3;
+
+import VERSCommon.LTSF;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ *
+ * C O N T E N T T Y P E S
+ *
+ * This class classifies content files by their file extension. It is built
+ * once, when the run starts, from the valid long term sustainable formats
+ * (validLTSF.txt), the compression policy, and the file extensions found in
+ * the content directory. Looking up a content file then gives, in one step,
+ * whether it is in a long term sustainable format and whether it is to be
+ * stored or deflated in the VEO zip file.
+ * <p>
+ * Each extension is indexed both as found and in lower case, so most lookups
+ * do not need the extension to be converted to lower case. An extension that
+ * was not known when the classifier was built (i.e. a file that was not in
+ * the content directory) is classified when it is looked up, but is not
+ * added.
+ * <p>
+ * The classifier is not changed after it is built, so it may be read
+ * concurrently.
+ */
+final class ContentTypes {
+
+    private final static Type NONE = new Type("", false, null); // files without an extension
+
+    private final LTSF ltsf;                // valid long term sustainable formats
+    private final CompressionPolicy policy; // compression policy (null if not writing directly)
+    private final HashMap<String, Type> types; // type of each extension (as found, and lower case)
+    private final int distinct;             // number of distinct extensions classified
+    private final int sustainable;          // number of extensions in a long term sustainable format
+    private final int stored;               // number of extensions that may be stored
+
+    /**
+     * Build the classifier.
+     *
+     * @param ltsf the valid long term sustainable formats
+     * @param policy the compression policy (null if content files are not
+     * stored)
+     * @param extensions the file extensions to classify (including the '.')
+     */
+    ContentTypes(LTSF ltsf, CompressionPolicy policy, Collection<String> extensions) {
+        Iterator<String> it;
+        String ext;
+        Type t;
+        int n, s1, s2;
+
+        this.ltsf = ltsf;
+        this.policy = policy;
+        types = new HashMap<>();
+        n = 0;
+        s1 = 0;
+        s2 = 0;
+        it = extensions.iterator();
+        while (it.hasNext()) {
+            ext = it.next();
+            if ((t = types.get(ext.toLowerCase(Locale.ROOT))) == null) {
+                t = type(ext.toLowerCase(Locale.ROOT));
+                types.put(t.extension, t);
+                n++;
+                if (t.ltsf) {
+                    s1++;
+                }
+                if (t.store != null) {
+                    s2++;
+                }
+            }
+            types.put(ext, t);
+        }
+        distinct = n;
+        sustainable = s1;
+        stored = s2;
+    }
+
+    /**
+     * Classify a file extension
+     *
+     * @param ext the extension (lower case, including the '.')
+     */
+    private Type type(String ext) {
+        return new Type(ext, ltsf.isV3LTSF(ext), policy != null ? policy.magic(ext) : null);
+    }
+
+    /**
+     * Classify a content file
+     *
+     * @param name the name of the content file (may include directories,
+     * separated by '/' or '\')
+     * @return the type of the file
+     */
+    Type classify(String name) {
+        String ext;
+        Type t;
+        int i;
+
+        if ((i = name.lastIndexOf('.')) == -1 || i < name.lastIndexOf('/') || i < name.lastIndexOf('\\')) {
+            return NONE;
+        }
+        ext = name.substring(i);
+        if ((t = types.get(ext)) != null) {
+            return t;
+        }
+        ext = ext.toLowerCase(Locale.ROOT);
+        if ((t = types.get(ext)) != null) {
+            return t;
+        }
+        return type(ext);
+    }
+
+    int size() {
+        return distinct;
+    }
+
+    int sustainable() {
+        return sustainable;
+    }
+
+    int stored() {
+        return stored;
+    }
+
+    /**
+     * The classification of a file extension
+     */
+    static final class Type {
+
+        final String extension;     // the extension (lower case, including the '.')
+        final boolean ltsf;         // true if in a long term sustainable format
+        final byte[][] store;       // magic numbers of files to store (empty if all are stored; null if deflated)
+
+        Type(String extension, boolean ltsf, byte[][] store) {
+            this.extension = extension;
+            this.ltsf = ltsf;
+            this.store = store;
+        }
+
+        /**
+         * Test if a file of this type might be stored in a VEO zip file,
+         * rather than deflated
+         *
+         * @return true if the file is to be stored if its magic number matches
+         */
+        boolean mightStore() {
+            return store != null;
+        }
+
+        /**
+         * Test if a file of this type is to be stored, given its first bytes
+         *
+         * @param head a buffer containing the first bytes of the file
+         * @param len the number of bytes in the buffer
+         * @return true if the file is to be stored
+         */
+        boolean store(byte[] head, int len) {
+            int i;
+
+            if (store == null) {
+                return false;
+            }
+            if (store.length == 0) {
+                return true;
+            }
+            for (i = 0; i < store.length; i++) {
+                if (startsWith(head, len, store[i])) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean startsWith(byte[] head, int len, byte[] magic) {
+            int i;
+
+            if (magic.length > len) {
+                return false;
+            }
+            for (i = 0; i < magic.length; i++) {
+                if (head[i] != magic[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package TrimProcessV3;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * H E A P M O N I T O R
+ *
+ * This class controls the admission of new VEO builds based on the occupancy
+ * of the Java heap. Before a VEO is built, the builder calls admit(); if the
+ * heap occupancy is above the threshold, the build waits until it drops (or
+ * until no other VEO is being built). When the VEO is finished the builder
+ * calls release().
+ * <p>
+ * Occupancy is measured on the tenured (old generation) heap pools using the
+ * usage after the most recent collection, as this reflects the live data
+ * rather than garbage waiting to be collected. If the JVM does not report a
+ * tenured pool, the total heap usage is used instead.
+ * <p>
+ * The class also keeps the statistics for the memory report at the end of
+ * the run.
+ */
+final class HeapMonitor {
+
+    private final static Logger LOG = Logger.getLogger("TrimProcessV3.TrimProcessV3CSV");
+    private final static long POLL_INTERVAL = 100; // ms between checks when waiting
+
+    private final MemoryMXBean memory;  // heap as a whole
+    private final List<MemoryPoolMXBean> heapPools; // all the heap pools
+    private final List<MemoryPoolMXBean> tenuredPools; // pools used to measure occupancy
+    private final double threshold;     // occupancy (0.0 to 1.0) above which builds wait
+    private final ReentrantLock lock;   // protects the counts below
+    private final Condition released;   // signalled when a build finishes
+    private int inFlight;               // number of VEOs currently being built
+    private int pauses;                 // number of builds that had to wait
+    private long pausedTime;            // total time (ms) builds spent waiting
+    private double peakOccupancy;       // highest occupancy seen when admitting a build
+
+    /**
+     * Create a heap monitor.
+     *
+     * @param threshold the heap occupancy (as a fraction of the maximum heap)
+     * above which new builds will wait
+     */
+    HeapMonitor(double threshold) {
+        this.threshold = threshold;
+        lock = new ReentrantLock();
+        released = lock.newCondition();
+        memory = ManagementFactory.getMemoryMXBean();
+        heapPools = new ArrayList<>();
+        tenuredPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP) {
+                continue;
+            }
+            heapPools.add(pool);
+
+            // in HotSpot only the tenured pools support a usage threshold
+            if (pool.isUsageThresholdSupported() && pool.isCollectionUsageThresholdSupported()) {
+                tenuredPools.add(pool);
+            }
+        }
+        inFlight = 0;
+        pauses = 0;
+        pausedTime = 0;
+        peakOccupancy = 0;
+    }
+
+    /**
+     * Wait until there is enough heap to start building another VEO. A build
+     * is always admitted if no other VEO is being built, as no memory will be
+     * released by waiting.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void admit() throws InterruptedException {
+        double occupancy;
+        long start;
+        boolean waited;
+
+        start = 0;
+        waited = false;
+        lock.lockInterruptibly();
+        try {
+            while ((occupancy = occupancy()) > threshold && inFlight > 0) {
+                if (!waited) {
+                    LOG.log(Level.FINE, "Heap occupancy {0}% above limit, waiting for builds to finish", new Object[]{Math.round(occupancy * 100)});
+                    start = System.currentTimeMillis();
+                    waited = true;
+                    pauses++;
+                }
+                released.await(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+            if (waited) {
+                pausedTime += System.currentTimeMillis() - start;
+            }
+            if (occupancy > peakOccupancy) {
+                peakOccupancy = occupancy;
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record that a VEO has finished being built, waking up any waiting
+     * builds.
+     */
+    void release() {
+        lock.lock();
+        try {
+            inFlight--;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the current heap occupancy.
+     *
+     * @return the occupancy as a fraction of the maximum size
+     */
+    double occupancy() {
+        MemoryUsage mu;
+        long used, max;
+
+        used = 0;
+        max = 0;
+        for (MemoryPoolMXBean pool : tenuredPools) {
+            mu = pool.getCollectionUsage();
+            if (mu == null) {
+                mu = pool.getUsage();
+            }
+            used += mu.getUsed();
+            max += mu.getMax() > 0 ? mu.getMax() : mu.getCommitted();
+        }
+        if (max == 0) {
+            mu = memory.getHeapMemoryUsage();
+            used = mu.getUsed();
+            max = mu.getMax() > 0 ? mu.getMax() : mu.getCommitted();
+        }
+        if (max <= 0) {
+            return 0;
+        }
+        return (double) used / max;
+    }
+
+    /**
+     * Log the memory report at the end of the run
+     */
+    void report() {
+        MemoryUsage mu;
+        long count, time;
+
+        mu = memory.getHeapMemoryUsage();
+        LOG.log(Level.SEVERE, "Memory: heap used {0} MB of {1} MB (maximum {2} MB)", new Object[]{mb(mu.getUsed()), mb(mu.getCommitted()), mb(mu.getMax())});
+        for (MemoryPoolMXBean pool : heapPools) {
+            mu = pool.getPeakUsage();
+            LOG.log(Level.INFO, "Memory: pool ''{0}'' peak used {1} MB of {2} MB", new Object[]{pool.getName(), mb(mu.getUsed()), mb(mu.getCommitted())});
+        }
+        count = 0;
+        time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc.getCollectionCount() > 0) {
+                count += gc.getCollectionCount();
+            }
+            if (gc.getCollectionTime() > 0) {
+                time += gc.getCollectionTime();
+            }
+        }
+        LOG.log(Level.SEVERE, "Memory: {0} garbage collections taking {1} ms", new Object[]{count, time});
+        lock.lock();
+        try {
+            LOG.log(Level.SEVERE, "Memory: peak occupancy {0}% (limit {1}%), {2} builds waited a total of {3} ms", new Object[]{Math.round(peakOccupancy * 100), Math.round(threshold * 100), pauses, pausedTime});
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Convert bytes to megabytes for reporting
+     */
+    private static long mb(long bytes) {
+        return bytes < 0 ? -1 : bytes / (1024 * 1024);
+    }
+}
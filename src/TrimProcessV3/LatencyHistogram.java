@@ -0,0 +1,143 @@
+package TrimProcessV3;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * L A T E N C Y H I S T O G R A M
+ *
+ * This class records the time taken by one stage of processing (e.g. signing
+ * a VEO) each time the stage is run, so that the distribution of the times
+ * can be reported at the end of the run.
+ * <p>
+ * Times are recorded in microseconds into log-linear buckets: times below 64
+ * microseconds have a bucket each, and each larger power of two is divided
+ * into 32 buckets. A percentile is therefore reported to within about 3% of
+ * the recorded time. The maximum is kept exactly.
+ * <p>
+ * Times may be recorded concurrently.
+ */
+final class LatencyHistogram {
+
+    private final static int LINEAR = 64;   // times (us) below this have a bucket each
+    private final static int SUB_BITS = 5;  // each power of two is divided into 2^SUB_BITS buckets
+    private final static int SUB_BUCKETS = 1 << SUB_BITS;
+    private final static int FIRST_EXP = 6; // power of two of LINEAR
+    private final static int BUCKETS = LINEAR + (63 - FIRST_EXP) * SUB_BUCKETS;
+
+    private final String name;          // name of the stage
+    private final AtomicLongArray counts; // number of times recorded in each bucket
+    private final LongAdder count;      // number of times recorded
+    private final LongAdder total;      // sum of the times recorded (us)
+    private final AtomicLong max;       // largest time recorded (us)
+
+    /**
+     * Create an empty histogram.
+     *
+     * @param name the name of the stage (for reporting)
+     */
+    LatencyHistogram(String name) {
+        this.name = name;
+        counts = new AtomicLongArray(BUCKETS);
+        count = new LongAdder();
+        total = new LongAdder();
+        max = new AtomicLong(0);
+    }
+
+    /**
+     * Record the time taken by one run of the stage
+     *
+     * @param nanos the time taken (from System.nanoTime())
+     */
+    void record(long nanos) {
+        long us;
+
+        us = nanos < 0 ? 0 : nanos / 1000;
+        counts.incrementAndGet(bucket(us));
+        count.increment();
+        total.add(us);
+        max.accumulateAndGet(us, Math::max);
+    }
+
+    /**
+     * Record the time since the stage started
+     *
+     * @param start the time the stage started (from System.nanoTime())
+     */
+    void since(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    String name() {
+        return name;
+    }
+
+    long count() {
+        return count.sum();
+    }
+
+    long total() {
+        return total.sum();
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * Get a percentile of the times recorded
+     *
+     * @param p the percentile (e.g. 0.95)
+     * @return the time (us), or 0 if nothing has been recorded
+     */
+    long percentile(double p) {
+        long n, target, seen;
+        int i;
+
+        n = 0;
+        for (i = 0; i < BUCKETS; i++) {
+            n += counts.get(i);
+        }
+        if (n == 0) {
+            return 0;
+        }
+        target = Math.max(1, (long) Math.ceil(p * n));
+        seen = 0;
+        for (i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(upper(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Find the bucket for a time
+     */
+    private static int bucket(long us) {
+        int exp;
+
+        if (us < LINEAR) {
+            return (int) us;
+        }
+        exp = 63 - Long.numberOfLeadingZeros(us);
+        return LINEAR + (exp - FIRST_EXP) * SUB_BUCKETS + (int) ((us >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * Find the largest time that falls in a bucket
+     */
+    private static long upper(int bucket) {
+        int exp, sub;
+
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        exp = (bucket - LINEAR) / SUB_BUCKETS + FIRST_EXP;
+        sub = (bucket - LINEAR) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exp - SUB_BITS)) - 1;
+    }
+}
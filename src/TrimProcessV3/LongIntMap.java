@@ -0,0 +1,149 @@
+package TrimProcessV3;
+
+import java.util.Arrays;
+
+/**
+ *
+ * L O N G I N T M A P
+ *
+ * This class maps long keys (encoded TRIM ids) to int values (indexes in the
+ * entity store). It is an open addressing hash table with linear probing, so
+ * lookups do not box the key or value, and do not create any objects.
+ * <p>
+ * Keys must not be negative (-1 marks an empty slot). The map is not
+ * synchronised; it must only be updated by one thread at a time.
+ */
+final class LongIntMap {
+
+    final static int NONE = -1;         // value returned if the key is not present
+    private final static long EMPTY = -1; // key of an empty slot
+    private final static double LOAD = 0.6; // fraction of the slots used before the table grows
+
+    private long[] keys;                // key in each slot
+    private int[] values;               // value in each slot
+    private int mask;                   // number of slots - 1
+    private int size;                   // number of keys in the map
+    private int limit;                  // number of keys at which the table grows
+
+    /**
+     * Create an empty map.
+     *
+     * @param expected the number of keys expected
+     */
+    LongIntMap(int expected) {
+        int n;
+
+        n = 16;
+        while (n * LOAD < expected) {
+            n <<= 1;
+        }
+        allocate(n);
+    }
+
+    /**
+     * Get the value for a key
+     *
+     * @param key the key
+     * @return the value, or NONE if the key is not present
+     */
+    int get(long key) {
+        int i;
+
+        for (i = hash(key) & mask; keys[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Set the value for a key
+     *
+     * @param key the key (not negative)
+     * @param value the value
+     * @return the previous value, or NONE if the key was not present
+     */
+    int put(long key, int value) {
+        int i, prev;
+
+        if (key < 0) {
+            throw new IllegalArgumentException("LongIntMap: negative key " + key);
+        }
+        for (i = hash(key) & mask; keys[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                prev = values[i];
+                values[i] = value;
+                return prev;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        if (size >= limit) {
+            grow();
+        }
+        return NONE;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Get the values in the map (in no particular order)
+     *
+     * @return an array of the values
+     */
+    int[] values() {
+        int[] v;
+        int i, j;
+
+        v = new int[size];
+        j = 0;
+        for (i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                v[j] = values[i];
+                j++;
+            }
+        }
+        return v;
+    }
+
+    private void allocate(int n) {
+        keys = new long[n];
+        Arrays.fill(keys, EMPTY);
+        values = new int[n];
+        mask = n - 1;
+        size = 0;
+        limit = (int) (n * LOAD);
+    }
+
+    private void grow() {
+        long[] oldKeys;
+        int[] oldValues;
+        int i;
+
+        oldKeys = keys;
+        oldValues = values;
+        allocate(keys.length * 2);
+        for (i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    /**
+     * Spread the bits of the key (the 64 bit finaliser from MurmurHash3), as
+     * encoded ids differ mostly in the low bits.
+     */
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
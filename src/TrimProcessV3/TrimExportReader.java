@@ -0,0 +1,366 @@
+package TrimProcessV3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * T R I M E X P O R T R E A D E R
+ *
+ * This class reads a TRIM export file. The export is a UTF-16 text table,
+ * with each line consisting of multiple fields separated by tabs.
+ * <p>
+ * The file is memory mapped and the UTF-16 code units are read directly from
+ * the mapped buffer. Lines and fields are found by scanning for the tab and
+ * line end characters, and a field is only converted into a String when it is
+ * asked for. This avoids decoding the whole file through a Reader and
+ * splitting each line with a regular expression.
+ * <p>
+ * The byte order is taken from the byte order mark at the start of the file.
+ * If there is no byte order mark the file is assumed to be big endian (as
+ * for the Java UTF-16 charset). Lines may be ended by LF, CR, or CR LF, and
+ * empty lines are skipped.
+ */
+final class TrimExportReader {
+
+    private final static int SEGMENT_SHIFT = 30; // files are mapped in 1GB segments
+    private final static long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    private final Path file;            // file being read
+    private final ByteBuffer[] segments; // mapped segments of the file
+    private final long start;           // offset of the first character (after any byte order mark)
+    private final long end;             // offset after the last complete character
+    private long pos;                   // offset of the next character to be read
+
+    /**
+     * Map a TRIM export file ready to be read.
+     *
+     * @param file the export file
+     * @throws IOException if the file could not be opened or mapped
+     */
+    TrimExportReader(Path file) throws IOException {
+        long size, offset, bom;
+        int i;
+        ByteOrder order;
+
+        this.file = file;
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            size = fc.size();
+            segments = new ByteBuffer[(int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+            for (i = 0; i < segments.length; i++) {
+                offset = (long) i << SEGMENT_SHIFT;
+                segments[i] = fc.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(SEGMENT_MASK + 1, size - offset));
+            }
+        }
+
+        // work out the byte order from the byte order mark (if present)
+        order = ByteOrder.BIG_ENDIAN;
+        bom = 0;
+        if (size >= 2) {
+            if ((segments[0].get(0) & 0xff) == 0xff && (segments[0].get(1) & 0xff) == 0xfe) {
+                order = ByteOrder.LITTLE_ENDIAN;
+                bom = 2;
+            } else if ((segments[0].get(0) & 0xff) == 0xfe && (segments[0].get(1) & 0xff) == 0xff) {
+                bom = 2;
+            }
+        }
+        start = bom;
+        for (i = 0; i < segments.length; i++) {
+            segments[i].order(order);
+        }
+        end = size & ~1L;
+        pos = start;
+    }
+
+    /**
+     * Create a reader for part of a file that has already been mapped. The
+     * part must start at the beginning of a line.
+     *
+     * @param parent the reader that mapped the file
+     * @param from offset of the start of the part
+     * @param to offset after the end of the part
+     */
+    private TrimExportReader(TrimExportReader parent, long from, long to) {
+        file = parent.file;
+        segments = parent.segments;
+        start = from;
+        end = to;
+        pos = from;
+    }
+
+    /**
+     * Get the number of bytes remaining to be read
+     *
+     * @return the number of bytes
+     */
+    long remaining() {
+        return end - pos;
+    }
+
+    /**
+     * Split the remainder of the file into chunks that can be read
+     * independently (and concurrently). Each chunk starts at the beginning of
+     * a line and ends after a line end, so no line is split between two
+     * chunks. The chunks are returned in file order. Fewer chunks may be
+     * returned if the lines are long compared to the chunks.
+     *
+     * @param n the number of chunks wanted
+     * @return a list of readers, one for each chunk
+     */
+    List<TrimExportReader> split(int n) {
+        ArrayList<TrimExportReader> chunks;
+        long from, to, size;
+        int i;
+        char c;
+
+        chunks = new ArrayList<>();
+        size = ((end - pos) / n) & ~1L;
+        from = pos;
+        for (i = 1; i < n && from < end; i++) {
+
+            // move the split point forward to just after the next line end
+            to = Math.max(pos + size * i, from);
+            c = 0;
+            while (to < end) {
+                c = charAt(to);
+                to += 2;
+                if (c == '\n' || c == '\r') {
+                    break;
+                }
+            }
+            if (c == '\r' && to < end && charAt(to) == '\n') {
+                to += 2;
+            }
+            if (to > from) {
+                chunks.add(new TrimExportReader(this, from, to));
+            }
+            from = to;
+        }
+        if (from < end || chunks.isEmpty()) {
+            chunks.add(new TrimExportReader(this, from, end));
+        }
+        pos = end;
+        return chunks;
+    }
+
+    /**
+     * Get the file being read
+     *
+     * @return the path of the file
+     */
+    Path getFile() {
+        return file;
+    }
+
+    /**
+     * Read the next (non empty) line from the export file.
+     *
+     * @param row the row to be filled in with the location of the line and
+     * its fields
+     * @return false if the end of the file has been reached
+     */
+    boolean next(Row row) {
+        long lineStart;
+        char c;
+
+        while (pos < end) {
+            lineStart = pos;
+            row.reset(this, lineStart);
+            c = 0;
+            while (pos < end) {
+                c = charAt(pos);
+                if (c == '\n' || c == '\r') {
+                    break;
+                }
+                if (c == '\t') {
+                    row.addField((int) ((pos - lineStart) >>> 1));
+                }
+                pos += 2;
+            }
+            row.addField((int) ((pos - lineStart) >>> 1));
+
+            // skip over the line end (treating CR LF as one line end)
+            if (pos < end) {
+                pos += 2;
+                if (c == '\r' && pos < end && charAt(pos) == '\n') {
+                    pos += 2;
+                }
+            }
+            if (row.length() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the UTF-16 code unit at the given offset in the file.
+     *
+     * @param offset the byte offset of the character (must be even)
+     * @return the character
+     */
+    char charAt(long offset) {
+        return segments[(int) (offset >>> SEGMENT_SHIFT)].getChar((int) (offset & SEGMENT_MASK));
+    }
+
+    /**
+     * Decode a sequence of characters from the file into a String.
+     *
+     * @param offset the byte offset of the first character
+     * @param length the number of characters
+     * @return the String
+     */
+    String string(long offset, int length) {
+        char[] buf;
+        int i;
+
+        if (length == 0) {
+            return "";
+        }
+        buf = new char[length];
+        for (i = 0; i < length; i++) {
+            buf[i] = charAt(offset + ((long) i << 1));
+        }
+        return new String(buf);
+    }
+
+    /**
+     * Fields
+     *
+     * The location of a line in the export file, and of the fields within it.
+     * Only the offsets of the fields are kept; the characters stay in the
+     * mapped file and a field is only converted into a String when it is
+     * asked for. The offsets may be copied (e.g. into the entity store) to
+     * keep the complete metadata of each TRIM entity without materialising
+     * columns that may never be read.
+     */
+    static class Fields {
+
+        TrimExportReader reader;    // reader the line came from
+        long lineStart;             // byte offset of the start of the line
+        int[] ends;                 // character offset (from the line start) of the end of each field
+        int count;                  // number of fields in the line
+
+        Fields(TrimExportReader reader, long lineStart, int[] ends, int count) {
+            this.reader = reader;
+            this.lineStart = lineStart;
+            this.ends = ends;
+            this.count = count;
+        }
+
+        /**
+         * Get the number of characters in the line (excluding the line end)
+         *
+         * @return the length
+         */
+        int length() {
+            return count == 0 ? 0 : ends[count - 1];
+        }
+
+        /**
+         * Get the number of fields in the line. As for String.split(), empty
+         * fields at the end of the line are not counted.
+         *
+         * @return the number of fields
+         */
+        int size() {
+            int i;
+
+            for (i = count; i > 0; i--) {
+                if (fieldStart(i - 1) != ends[i - 1]) {
+                    break;
+                }
+            }
+            return i;
+        }
+
+        /**
+         * Test if a field is empty (or beyond the end of the line) without
+         * converting it into a String.
+         *
+         * @param i the field (column) number
+         * @return true if the field is empty
+         */
+        boolean isEmpty(int i) {
+            if (i < 0 || i >= count) {
+                return true;
+            }
+            return fieldStart(i) == ends[i];
+        }
+
+        /**
+         * Get a field from the line. A field beyond the end of the line is
+         * returned as an empty string.
+         *
+         * @param i the field (column) number
+         * @return the value of the field
+         */
+        String get(int i) {
+            int s;
+
+            if (i < 0 || i >= count) {
+                return "";
+            }
+            s = fieldStart(i);
+            return reader.string(lineStart + ((long) s << 1), ends[i] - s);
+        }
+
+        /**
+         * Convert the line into an array of fields, as String.split("\t")
+         * would.
+         *
+         * @return the array of fields
+         */
+        String[] toArray() {
+            String[] a;
+            int i;
+
+            a = new String[size()];
+            for (i = 0; i < a.length; i++) {
+                a[i] = get(i);
+            }
+            return a;
+        }
+
+        private int fieldStart(int i) {
+            return i == 0 ? 0 : ends[i - 1] + 1;
+        }
+    }
+
+    /**
+     * Row
+     *
+     * The line currently being read. A Row is reused for each line read, so
+     * no objects are created per line until a field is asked for.
+     */
+    static final class Row extends Fields {
+
+        Row() {
+            super(null, 0, new int[64], 0);
+        }
+
+        private void reset(TrimExportReader reader, long lineStart) {
+            this.reader = reader;
+            this.lineStart = lineStart;
+            count = 0;
+        }
+
+        private void addField(int end) {
+            int[] a;
+
+            if (count == ends.length) {
+                a = new int[ends.length * 2];
+                System.arraycopy(ends, 0, a, 0, count);
+                ends = a;
+            }
+            ends[count] = end;
+            count++;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package TrimProcessV3;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *
+ * T R I M I D C O D E C
+ *
+ * This class encodes a TRIM id (e.g. 'CF/2018/1234') into a single long. A
+ * TRIM id has three parts separated by '/': a type prefix, a year (two or
+ * four characters), and a sequence number.
+ * <p>
+ * The text of the id up to the sequence number (e.g. 'CF/2018/') is replaced
+ * by a code from a dictionary of the prefixes seen, so that an id can be
+ * kept, compared and hashed as a primitive. The encoded id is laid out as
+ * <pre>
+ *  bits 62-32: prefix code
+ *  bits 31-0:  sequence number
+ * </pre> Encoded ids are never negative, so -1 can be used for 'no id'. If
+ * the sequence number is not written in its usual form (e.g. it has leading
+ * zeros) the whole id is put in the dictionary instead, and the sequence
+ * number bits are zero. An id therefore decodes to exactly the text it was
+ * encoded from, and ids that differ only in the form of the year or sequence
+ * number (e.g. 'CF/2018/1' and 'CF/18/01') are different ids.
+ * <p>
+ * Containers are matched on the normalised form of the id: the last two
+ * characters of the year and the value of the sequence number (see
+ * normalise()). This is the form used to name the VEOs.
+ * <p>
+ * Ids may be encoded and decoded concurrently.
+ */
+final class TrimIdCodec {
+
+    final static long NONE = -1;        // value used when there is no id
+    private final static int CODE_SHIFT = 32; // position of the prefix code
+
+    private final ConcurrentHashMap<String, Integer> codes; // code of each prefix (or whole id) seen
+    private volatile String[] texts;    // prefixes (ending in '/') or whole ids indexed by code
+    private volatile int[] canon;       // code of the normalised prefix of each entry
+    private volatile int[] seqs;        // sequence number of each whole id (0 for a prefix)
+    private int size;                   // number of entries
+    private final ReentrantLock lock;   // held while an entry is added
+
+    TrimIdCodec() {
+        codes = new ConcurrentHashMap<>();
+        texts = new String[16];
+        canon = new int[16];
+        seqs = new int[16];
+        size = 0;
+        lock = new ReentrantLock();
+    }
+
+    /**
+     * Encode a TRIM id. The checks are those originally made when a TRIM id
+     * was parsed.
+     *
+     * @param id the TRIM id
+     * @return the encoded id
+     * @throws Error if the id is not a valid TRIM id
+     */
+    long encode(String id) throws Error {
+        int s1, s2, seq;
+        String s;
+
+        if (id == null) {
+            throw new Error("Invalid TRIM ID: null pointer");
+        }
+        s1 = id.indexOf('/');
+        s2 = s1 == -1 ? -1 : id.indexOf('/', s1 + 1);
+        if (s2 == -1 || id.indexOf('/', s2 + 1) != -1) {
+            throw new Error("Invalid TRIM ID: '" + id + "': doesn't have three parts separated by '/'");
+        }
+        if (s2 - s1 - 1 != 2 && s2 - s1 - 1 != 4) {
+            throw new Error("Invalid TRIM ID: '" + id + "': year is not 2 or 4 digits in length (" + id.substring(s1 + 1, s2) + ")");
+        }
+        s = id.substring(s2 + 1);
+        try {
+            seq = Integer.parseInt(s);
+        } catch (NumberFormatException nfe) {
+            throw new Error("Invalid TRIM ID: '" + id + "': invalid sequence number: " + nfe.toString());
+        }
+        if (Integer.toString(seq).equals(s)) {
+            return ((long) code(id.substring(0, s2 + 1), seq) << CODE_SHIFT) | (seq & 0xffffffffL);
+        }
+        return (long) code(id, seq) << CODE_SHIFT;
+    }
+
+    /**
+     * Get the code for a prefix or whole id, adding it to the dictionary if it
+     * has not been seen before.
+     *
+     * @param text the prefix (ending in '/') or whole id
+     * @param seq the sequence number (only kept for a whole id)
+     */
+    private int code(String text, int seq) {
+        Integer code;
+        String year, normal;
+        int s1, s2, c;
+
+        if ((code = codes.get(text)) != null) {
+            return code;
+        }
+        lock.lock();
+        try {
+            if ((code = codes.get(text)) != null) {
+                return code;
+            }
+            if (size == Integer.MAX_VALUE) {
+                throw new Error("Invalid TRIM ID: too many different types and years (" + text + ")");
+            }
+            s1 = text.indexOf('/');
+            s2 = text.indexOf('/', s1 + 1);
+            year = text.substring(s1 + 1, s2);
+            normal = text.substring(0, s1 + 1) + year.substring(year.length() - 2) + "/";
+            c = normal.equals(text) ? size : code(normal, 0);
+            if (size == texts.length) {
+                canon = Arrays.copyOf(canon, size * 2);
+                seqs = Arrays.copyOf(seqs, size * 2);
+                texts = Arrays.copyOf(texts, size * 2);
+            }
+            texts[size] = text;
+            canon[size] = c;
+            seqs[size] = text.endsWith("/") ? 0 : seq;
+            codes.put(text, size);
+            size++;
+            return size - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the normalised form of an encoded id, i.e. the id with a two digit
+     * year and the sequence number in its usual form. This is the form in
+     * which the original program compared TRIM ids.
+     *
+     * @param id the encoded id
+     * @return the encoded normalised id
+     */
+    long normalise(long id) {
+        int c;
+
+        c = (int) (id >>> CODE_SHIFT);
+        if (texts[c].endsWith("/")) {
+            return ((long) canon[c] << CODE_SHIFT) | (id & 0xffffffffL);
+        }
+        return ((long) canon[c] << CODE_SHIFT) | (seqs[c] & 0xffffffffL);
+    }
+
+    /**
+     * Convert an encoded id back into the TRIM id it was encoded from.
+     *
+     * @param id the encoded id
+     * @return the TRIM id
+     */
+    String toString(long id) {
+        String s;
+
+        s = texts[(int) (id >>> CODE_SHIFT)];
+        return s.endsWith("/") ? s + (int) id : s;
+    }
+}
@@ -30,8 +30,91 @@ package TrimProcessV3;
  * VEO created.</li>
  * <li><b>-r &lt;rdfid&gt;</b> a prefix used to construct the RDF identifiers.
  * If not present the string file:///[pathname] is used.</li>
+ * <li><b>-threads &lt;n&gt;</b> the number of VEOs to build concurrently. Each
+ * root entity is built independently. The VEOs pass through a pipeline of
+ * three stages (rendering the metadata and content, signing, and packaging
+ * the zip file), each with n threads and a queue of up to n VEOs, so that
+ * the signing of one VEO overlaps with the reading of the content of the
+ * next. By default 1.</li>
+ * <li><b>-heapLimit &lt;percent&gt;</b> the occupancy of the heap (after
+ * garbage collection) above which new VEOs wait for others to finish before
+ * being built. By default 85.</li>
+ * <li><b>-resume</b> restart a run that stopped before it finished. A journal
+ * of the VEOs built (BuildJournal.txt) is kept in the output directory, and
+ * with this option the VEOs recorded in it are not built again (unless the
+ * VEO file has since changed). A VEO file whose last modified time has
+ * changed is built again, unless it was written with -direct, in which case
+ * its digest was recorded and it is only built again if its contents have
+ * changed. By default the journal is started afresh and all VEOs are
+ * built.</li>
+ * <li><b>-contentIgnoreCase</b> match the names of content files in the export
+ * against the files in the content directory ignoring case. By default the
+ * case must match.</li>
+ * <li><b>-excludeBadContent</b> don't build a VEO if any of its content files
+ * is missing, unreadable, or has changed since the content directory was
+ * indexed. The content files are always checked before any VEO is built, and
+ * the problems found are listed in ContentProblems.txt in the output
+ * directory. By default the VEOs are still built (and will fail when the
+ * content file is added).</li>
+ * <li><b>-direct</b> write each VEO (zip) file directly. The metadata files
+ * are still generated and signed in the VEO directory, but the content files
+ * are streamed from the content directory straight into the zip file
+ * (CreateVEO still reads each content file to hash it for VEOContent.xml,
+ * and the content files are not hashed again as they are copied). The VEO
+ * directory is deleted once the zip
+ * file is written (unless in debug mode). By default the VEO is zipped by
+ * the VEO creation library. Content files that are already compressed are
+ * stored in the zip file rather than deflated. Which files are stored is read
+ * from compression.txt in the support directory (if present; otherwise PDF,
+ * JPEG, PNG, GIF, the Office Open XML and OpenDocument formats, and common
+ * archive, audio and video formats are stored). Content files larger than
+ * 64MB are deflated in parallel, using all the processors. Content files
+ * of any size are streamed, and Zip64 is used for content files or VEOs
+ * larger than 4GB, so this option should be used for exports containing very
+ * large content files.</li>
+ * <li><b>-vthreads</b> build each VEO on its own virtual thread, rather than
+ * in the pipeline of -threads. This suits content on a slow network share,
+ * where the builds spend most of their time waiting for the content files to
+ * be read. The number of VEOs being built at once is limited separately
+ * (-maxVEOs) from the number of content files being read (-openFiles), and
+ * new VEOs also wait if the heap is full (-heapLimit). Virtual threads need
+ * Java 21 or later; on an earlier Java the VEOs are built on a pool of as
+ * many ordinary threads as content files may be read at once.</li>
+ * <li><b>-openFiles &lt;n&gt;</b> the maximum number of content files read at
+ * once (by CreateVEO, or when writing the VEO directly). By default 64 with
+ * -vthreads, and otherwise unlimited.</li>
+ * <li><b>-maxVEOs &lt;n&gt;</b> the maximum number of VEOs being built at
+ * once with -vthreads. Each VEO being built has its own metadata files open,
+ * so this is bounded by the number of files the process may have open. By
+ * default 1024.</li>
+ * <li><b>-forkJoin</b> render the TRIM entities of a large VEO (one with 64
+ * or more TRIM entities) in parallel. The metadata of each entity is
+ * generated on a fork-join pool, and its content file (if no larger than
+ * 64MB) is read ahead so that it is likely to be in the page cache when it is
+ * added; the entities are then added to the VEO in the original order. This
+ * stops a single very large VEO (e.g. a Cabinet file with thousands of
+ * documents) taking far longer than the rest of the run. Adding a content
+ * file to the VEO (including hashing it) is still done one file at a time,
+ * so this helps most when the content files are slow to read (e.g. on a
+ * network share). By default the entities of a VEO are rendered one at a
+ * time.</li>
  * </ul>
  * <p>
+ * When building concurrently (-threads or -vthreads), the VEOs from each
+ * export file are started in order of their estimated cost, most expensive
+ * first, so that a very large VEO does not start last and leave the run
+ * building it alone. The cost of a VEO is estimated from the number of TRIM
+ * entities it contains and the total size of their content files. The
+ * estimate and the actual time taken to build each VEO are listed in
+ * BuildCosts.txt in the output directory.
+ * <p>
+ * A content file referenced by several TRIM entities is only located once,
+ * and is listed once in ContentFiles.txt in the output directory with the
+ * number of references to it. It is still read and hashed by the VEO
+ * creation library for every reference, in the same VEO or another, and
+ * again on every run, as the library cannot be given a digest calculated
+ * earlier. For the same reason no digests are kept between runs.
+ * <p>
  * A minimal example of usage is<br>
  * <pre>
  *     trimprocessv3 -s text.pfx test TRIMExportFile.xml
@@ -52,23 +135,36 @@ import VERSCommon.VEOFatal;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.security.NoSuchAlgorithmException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -77,9 +173,19 @@ public class TrimProcessV3CSV {
 
     static String classname = "TrimProcessV3-CSV"; // for reporting
     ArrayList<String> files;// files or directories to process
-    static ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    Runtime r;
-    long freemem;
+    HeapMonitor heapMonitor; // controls admission of VEO builds based on heap use
+    int heapLimit;          // heap occupancy (percent) above which new builds wait
+    boolean resume;         // true if VEOs recorded in the build journal are not built again
+    BuildJournal journal;   // journal of the VEOs completely built
+    ContentRegistry contentFiles; // content files referenced in this run
+    ContentIndex contentIndex; // index of the files in the content directory
+    boolean contentIgnoreCase; // true if content file names are matched ignoring case
+    ContentCheck contentCheck; // checks the content files before the VEOs are built
+    boolean excludeBadContent; // true if VEOs with content problems are not built
+    boolean direct;         // true if VEO (zip) files are written directly
+    CompressionPolicy compression; // which content files are stored rather than deflated (-direct)
+    ContentTypes types;     // LTSF and compression policy of each content file extension
+    AtomicInteger resumedCount; // number of VEOs not built because they were built by an earlier run
     String missingXMLEntityExpln; // a description of why the XML entities were missing
     Path supportDir;        // directory in which is found the support information
     LTSF ltsf;              // valid long term sustainable formats
@@ -90,7 +196,8 @@ public class TrimProcessV3CSV {
     Path contentDirectory;  // directory where content files are to be found (relative to source directory)
     Path outputDirectory;   // directory in which VEOS are to be generated
     Path templateDir;       // directory in which the template is to be found
-    int exportCount;        // number of exports processed
+    AtomicInteger exportCount; // number of exports processed
+    int threads;            // number of VEOs to build concurrently
     boolean incRevisions;   // include revisions of the final version
     boolean debug;          // true if in debug mode
     boolean verbose;        // true if in verbose output mode
@@ -99,28 +206,57 @@ public class TrimProcessV3CSV {
     String userId;          // user performing the converstion
     PFXUser user;           // User that will sign the VEOs
     Fragment aglsCommon;    // template for common metadata elements
-    SortedMap<String, TrimEntity> allEntities; // List of all entities found or referenced
-
-    // global variables storing information extracted from a specific export.txt file
-    String[] labels;        // list of column labels taken from the TRIM export file being processed
-    int idCol;              // column in which to find the TRIM entity identifier
-    int containerCol;       // column in which to find the container reference
-    int containedCol;       // column in which to find the contained entities
-    int titleCol;           // column in which the title is found
-    int classificationCol;  // column in which the classification is found
-    int dateCreatedCol;     // column in which the date the entity was created is found
-    int dateRegisteredCol;  // column in which the date the entity was registered is found
-    int recordTypeCol;      // column in which the record type is found
-    int isPartCol;          // column in which the 'is part' info is found
-    int docFileCol;         // column in which the attached file is to be found
-    int retSchCol;          // column in which the retention schedule is to be found
-
-    Path veoDirectory;    // directory representing the VEO
-    Path dummyLTSFCF;       // file containing the dummyLTSF content file
-    ArrayList<Embedded> revisions; // the revisions
-    ArrayList<Embedded> renditions; // the renditions
-    ArrayList<String> attachments; // attachments to emails
-    ArrayList<String> staticChildren; // a static reference to the array list declared on the stack
+    EntityStore store;      // all the TRIM entities found or referenced
+    TrimIdCodec trimIds;    // encodes TRIM ids into longs
+    LongIntMap allEntities; // index in the store of all entities found or referenced (by encoded id)
+    ColumnDictionary<String> classifications; // values of the classification column
+    ColumnDictionary<String> recordTypes; // values of the record type column (mapped to descriptions)
+    ColumnDictionary<String> retentionSchedules; // values of the retention schedule column
+    long indexBuildTime;    // total time (ms) spent building the parent to children indexes
+    int indexParents;       // total number of parents in the parent to children indexes
+    int indexChildren;      // total number of children in the parent to children indexes
+    LatencyHistogram parseTime; // time to read each TRIM entity file
+    LatencyHistogram checkTime; // time to check the content files of each TRIM entity file
+    LatencyHistogram aglsTime; // time to make the AGLS metadata of each TRIM entity
+    LatencyHistogram trimTime; // time to make the TRIM metadata of each TRIM entity
+    LatencyHistogram contentTime; // time to add each content file to a VEO
+    LatencyHistogram openWaitTime; // time waiting before each content file could be read (-openFiles)
+    LatencyHistogram prefetchTime; // time to read ahead each content file (-forkJoin)
+    LatencyHistogram finishTime; // time to finish the files of each VEO
+    LatencyHistogram signTime; // time to sign each VEO
+    LatencyHistogram finaliseTime; // time to finalise (zip) each VEO
+    LatencyHistogram veoTime; // total time to build each VEO
+    BuildStage[] stages;    // pipeline building VEOs concurrently (null if building one at a time)
+    final static int RENDER = 0; // stage generating the metadata and adding the content files
+    final static int SIGN = 1; // stage signing the VEO
+    final static int PACKAGE = 2; // stage zipping the VEO
+    long buildElapsed;      // time (ns) spent building VEOs (for the utilisation of the pipeline)
+    boolean vthreads;       // true if each VEO is built on its own virtual thread (-vthreads)
+    ExecutorService vbuilders; // runs a virtual thread for each VEO (null unless -vthreads)
+    int maxOpenFiles;       // maximum number of content files read at once (0 if unlimited)
+    final static int VTHREAD_OPEN_FILES = 64; // default maximum open content files with -vthreads
+    int maxVEOs;            // maximum number of VEOs built at once with -vthreads
+    final static int VTHREAD_MAX_VEOS = 1024; // default maximum VEOs built at once with -vthreads
+    Semaphore openFiles;    // limits the content files read at once (null if unlimited)
+    Semaphore vbuilding;    // limits the VEOs being built at once (null unless -vthreads)
+    boolean forkJoin;       // true if the TRIM entities of large VEOs are rendered in parallel (-forkJoin)
+    ForkJoinPool renderers; // pool rendering the TRIM entities of large VEOs (null unless -forkJoin)
+    final static int FORK_JOIN_SIZE = 64; // VEOs with at least this many TRIM entities are rendered in parallel (-forkJoin)
+    final static long PREFETCH_SIZE = 64 * 1024 * 1024; // content files no larger than this are read ahead when rendering in parallel (-forkJoin)
+    AtomicInteger forkJoined; // number of VEOs rendered in parallel
+    ArrayList<RootCost> rootCosts; // estimated and actual cost of each VEO, in the order started
+    final static long ENTITY_COST = 64 * 1024; // bytes of content that take about as long to add as one TRIM entity
+    ForkJoinPool parsers;   // pool reading large export files in parallel (null if building one at a time)
+    ExecutorService checkers; // pool checking the content files before the VEOs are built
+    final static int CHECK_THREADS = 8; // minimum number of threads checking content files
+    ExecutorService deflaters; // pool deflating large content files in parallel (null if not building directly)
+    final static long PARALLEL_DEFLATE_SIZE = 64 * 1024 * 1024; // content files larger than this are deflated in parallel (-direct)
+    final static long PARALLEL_PARSE_SIZE = 16 * 1024 * 1024; // export files larger than this are read in parallel
+    // Locks held while a VEO is being built are ReentrantLocks rather than
+    // synchronized blocks: before Java 24 a virtual thread that blocks (e.g.
+    // on I/O) inside a synchronized block holds on to its carrier thread
+    volatile ContentRegistry.Content dummyLTSF; // dummy content file shared by all VEOs (null until first needed)
+    final ReentrantLock dummyLock = new ReentrantLock(); // held while the dummy content file is created
 
     String revisionNo;      // identifier for this particular revision
     String renditionNo;     // identifier for this particular rendition
@@ -137,10 +273,25 @@ public class TrimProcessV3CSV {
      * 20210709 2.1 Updated to work on PISA with BAT file
      * 20210712 2.2 Improved reporting
      * 20210714 2.3 Added content directory etc
+     * 20261018 2.4 Added building VEOs concurrently (-threads)
+     * 20261018 2.5 Replaced forced garbage collection with heap admission control (-heapLimit)
+     * 20261018 2.6 Added journal of VEOs built, and restarting a run (-resume)
+     * 20261018 2.7 Index the content directory once, and check content files before building (-contentIgnoreCase)
+     * 20261018 2.8 Check content files in parallel before building, and optionally exclude VEOs with problems (-excludeBadContent)
+     * 20261018 2.9 Added writing VEO zip files directly, streaming the content files (-direct)
+     * 20261018 2.10 Store already compressed content files when writing directly (compression.txt)
+     * 20261018 2.11 Deflate very large content files in parallel when writing directly
+     * 20261018 2.12 Write Zip64 records for content files and VEOs larger than 4GB when writing directly
+     * 20261018 2.13 Dummy content file generated once per run in a temporary file
+     * 20261018 2.14 Content file extensions classified once, when the run starts
+     * 20261018 2.15 VEOs built concurrently in a pipeline of render, sign, and package stages
+     * 20261018 2.16 Added building each VEO on its own virtual thread (-vthreads) and limiting the content files read at once (-openFiles) and the VEOs built at once (-maxVEOs)
+     * 20261018 2.17 Added rendering the TRIM entities of large VEOs in parallel (-forkJoin)
+     * 20261018 2.18 VEOs started largest first when building concurrently; estimated and actual build costs written to BuildCosts.txt
      * </pre>
      */
     static String version() {
-        return ("2.3");
+        return ("2.18");
     }
 
     /**
@@ -181,13 +332,58 @@ public class TrimProcessV3CSV {
         }
         user = null;
         incRevisions = false;
-        exportCount = 0;
-        allEntities = new TreeMap<>();
+        exportCount = new AtomicInteger(0);
+        threads = 1;
+        stages = null;
+        buildElapsed = 0;
+        vthreads = false;
+        vbuilders = null;
+        maxOpenFiles = 0;
+        maxVEOs = VTHREAD_MAX_VEOS;
+        openFiles = null;
+        vbuilding = null;
+        forkJoin = false;
+        renderers = null;
+        forkJoined = new AtomicInteger(0);
+        rootCosts = new ArrayList<>();
+        parsers = null;
+        checkers = null;
+        deflaters = null;
+        dummyLTSF = null;
+        trimIds = new TrimIdCodec();
+        allEntities = new LongIntMap(1024);
+        store = new EntityStore();
+        classifications = new ColumnDictionary<>("Classification");
+        recordTypes = new ColumnDictionary<>("Record Type");
+        retentionSchedules = new ColumnDictionary<>("Retention schedule");
+        indexBuildTime = 0;
+        indexParents = 0;
+        indexChildren = 0;
+        parseTime = new LatencyHistogram("Read export file");
+        checkTime = new LatencyHistogram("Check content files");
+        aglsTime = new LatencyHistogram("AGLS metadata");
+        trimTime = new LatencyHistogram("TRIM metadata");
+        contentTime = new LatencyHistogram("Add content file");
+        openWaitTime = new LatencyHistogram("Wait to read content file");
+        prefetchTime = new LatencyHistogram("Read ahead content file");
+        finishTime = new LatencyHistogram("Finish files");
+        signTime = new LatencyHistogram("Sign");
+        finaliseTime = new LatencyHistogram("Finalise");
+        veoTime = new LatencyHistogram("Build VEO");
         help = false;
-        r = Runtime.getRuntime();
-
-        // variables for processing this XML document
-        labels = null;
+        heapLimit = 85;
+        resume = false;
+        journal = null;
+        contentFiles = null;
+        contentIndex = null;
+        contentIgnoreCase = false;
+        contentCheck = null;
+        excludeBadContent = false;
+        direct = false;
+        compression = null;
+        types = null;
+        resumedCount = new AtomicInteger(0);
+        heapMonitor = null;
 
         // process command line arguments
         configure(args);
@@ -222,6 +418,16 @@ public class TrimProcessV3CSV {
             LOG.log(Level.SEVERE, "  -o <directory>: the directory in which the VEOs are created (default is current working directory)");
             LOG.log(Level.SEVERE, "  -h <hashAlgorithm>: specifies the hash algorithm (default SHA-256)");
             LOG.log(Level.SEVERE, "  -rev: include all revisions of the content (if present)");
+            LOG.log(Level.SEVERE, "  -threads <n>: build VEOs concurrently in a pipeline with n threads per stage (default 1)");
+            LOG.log(Level.SEVERE, "  -heapLimit <percent>: new VEOs wait while heap occupancy is above this (default 85)");
+            LOG.log(Level.SEVERE, "  -resume: don't build VEOs recorded in the build journal of an earlier run");
+            LOG.log(Level.SEVERE, "  -contentIgnoreCase: match content file names ignoring case");
+            LOG.log(Level.SEVERE, "  -excludeBadContent: don't build VEOs with missing or unreadable content files");
+            LOG.log(Level.SEVERE, "  -direct: write the VEO zip files directly, streaming the content files into them");
+            LOG.log(Level.SEVERE, "  -vthreads: build each VEO on its own virtual thread (for content on a slow share)");
+            LOG.log(Level.SEVERE, "  -openFiles <n>: read at most n content files at once (default 64 with -vthreads, otherwise unlimited)");
+            LOG.log(Level.SEVERE, "  -maxVEOs <n>: build at most n VEOs at once with -vthreads (default 1024)");
+            LOG.log(Level.SEVERE, "  -forkJoin: render the TRIM entities of large VEOs in parallel");
             LOG.log(Level.SEVERE, "");
             LOG.log(Level.SEVERE, "  -v: verbose mode: give more details about processing");
             LOG.log(Level.SEVERE, "  -d: debug mode: give a lot of details about processing");
@@ -265,11 +471,38 @@ public class TrimProcessV3CSV {
         if (incRevisions) {
             LOG.log(Level.SEVERE, "Including revisions");
         }
+        if (vthreads) {
+            LOG.log(Level.SEVERE, "Building each VEO on its own virtual thread, at most {0} at once", maxVEOs);
+        } else if (threads > 1) {
+            LOG.log(Level.SEVERE, "Building VEOs concurrently in a pipeline with {0} threads per stage", threads);
+        }
+        if (maxOpenFiles > 0) {
+            LOG.log(Level.SEVERE, "At most {0} content files are read at once", maxOpenFiles);
+        }
+        if (forkJoin) {
+            LOG.log(Level.SEVERE, "The TRIM entities of VEOs with at least {0} entities are rendered in parallel", FORK_JOIN_SIZE);
+        }
+        LOG.log(Level.SEVERE, "New VEOs wait if heap occupancy exceeds {0}%", heapLimit);
+        if (resume) {
+            LOG.log(Level.SEVERE, "Resuming: VEOs recorded in the build journal will not be built again");
+        }
+        if (contentIgnoreCase) {
+            LOG.log(Level.SEVERE, "Content file names are matched ignoring case");
+        }
+        if (excludeBadContent) {
+            LOG.log(Level.SEVERE, "VEOs with missing or unreadable content files will not be built");
+        }
+        if (direct) {
+            LOG.log(Level.SEVERE, "VEO zip files are written directly");
+        }
         LOG.log(Level.SEVERE, "");
 
         // get template for AGLS metadata
         aglsCommon = Fragment.parseTemplate(templateDir.resolve("aglsCommon.txt").toFile());
         ltsf = new LTSF(supportDir.resolve("validLTSF.txt"));
+        if (direct) {
+            compression = new CompressionPolicy(supportDir.resolve("compression.txt"));
+        }
 
         try {
             missingXMLEntityExpln = getExplanation(templateDir.resolve("missingXMLEntityExpln.txt"));
@@ -292,7 +525,7 @@ public class TrimProcessV3CSV {
         int i;
         Path pfxFile;           // PFX file to use for signing. If null, don't sign
         String pfxFilePassword; // Password to unlock PFX file
-        String usage = "trimProcessV3 [-help] -t <directory> -s <pfxFile> <password> -support <directory> [-v] [-d] [-ha hashAlg] [-o <directory>] [-a dir]* [-rev] [-source <directory>] [-content <directory>] (files)*";
+        String usage = "trimProcessV3 [-help] -t <directory> -s <pfxFile> <password> -support <directory> [-v] [-d] [-ha hashAlg] [-o <directory>] [-a dir]* [-rev] [-threads <n>] [-heapLimit <percent>] [-resume] [-contentIgnoreCase] [-excludeBadContent] [-direct] [-vthreads] [-openFiles <n>] [-maxVEOs <n>] [-forkJoin] [-source <directory>] [-content <directory>] (files)*";
 
         // process command line arguments
         i = 0;
@@ -385,6 +618,98 @@ public class TrimProcessV3CSV {
                         incRevisions = true;
                         break;
 
+                    // '-threads' specifies how many VEOs to build concurrently
+                    case "-threads":
+                        i++;
+                        try {
+                            threads = Integer.parseInt(args[i]);
+                        } catch (NumberFormatException nfe) {
+                            throw new VEOFatal("Invalid number of threads '" + args[i] + "'. Usage: " + usage);
+                        }
+                        if (threads < 1) {
+                            throw new VEOFatal("Number of threads must be at least 1. Usage: " + usage);
+                        }
+                        i++;
+                        break;
+
+                    // '-heapLimit' specifies the heap occupancy above which new VEO builds wait
+                    case "-heapLimit":
+                        i++;
+                        try {
+                            heapLimit = Integer.parseInt(args[i]);
+                        } catch (NumberFormatException nfe) {
+                            throw new VEOFatal("Invalid heap limit '" + args[i] + "'. Usage: " + usage);
+                        }
+                        if (heapLimit < 1 || heapLimit > 100) {
+                            throw new VEOFatal("Heap limit must be between 1 and 100 percent. Usage: " + usage);
+                        }
+                        i++;
+                        break;
+
+                    // '-resume' restarts a run, not building the VEOs in the build journal
+                    case "-resume":
+                        resume = true;
+                        i++;
+                        break;
+
+                    // '-contentIgnoreCase' matches content file names ignoring case
+                    case "-contentIgnoreCase":
+                        contentIgnoreCase = true;
+                        i++;
+                        break;
+
+                    // '-excludeBadContent' doesn't build VEOs with content problems
+                    case "-excludeBadContent":
+                        excludeBadContent = true;
+                        i++;
+                        break;
+
+                    // '-direct' writes the VEO zip files directly
+                    case "-direct":
+                        direct = true;
+                        i++;
+                        break;
+
+                    // '-vthreads' builds each VEO on its own virtual thread
+                    case "-vthreads":
+                        vthreads = true;
+                        i++;
+                        break;
+
+                    // '-forkJoin' renders the TRIM entities of large VEOs in parallel
+                    case "-forkJoin":
+                        forkJoin = true;
+                        i++;
+                        break;
+
+                    // '-openFiles' specifies how many content files may be read at once
+                    case "-openFiles":
+                        i++;
+                        try {
+                            maxOpenFiles = Integer.parseInt(args[i]);
+                        } catch (NumberFormatException nfe) {
+                            throw new VEOFatal("Invalid number of open files '" + args[i] + "'. Usage: " + usage);
+                        }
+                        if (maxOpenFiles < 1) {
+                            throw new VEOFatal("Number of open files must be at least 1. Usage: " + usage);
+                        }
+                        i++;
+                        break;
+
+                    // '-maxVEOs' specifies how many VEOs may be built at once with -vthreads
+                    case "-maxVEOs":
+                        i++;
+                        try {
+                            maxVEOs = Integer.parseInt(args[i]);
+                        } catch (NumberFormatException nfe) {
+                            throw new VEOFatal("Invalid number of VEOs '" + args[i] + "'. Usage: " + usage);
+                        }
+                        if (maxVEOs < 1) {
+                            throw new VEOFatal("Number of VEOs must be at least 1. Usage: " + usage);
+                        }
+                        i++;
+                        break;
+
                     default:
                         // if unrecognised arguement, print help string and exit
                         if (args[i].charAt(0) == '-') {
@@ -402,6 +727,9 @@ public class TrimProcessV3CSV {
         } catch (VEOFatal vf) {
             throw new VEOFatal("Fatal error: " + vf.toString());
         }
+        if (vthreads && maxOpenFiles == 0) {
+            maxOpenFiles = VTHREAD_OPEN_FILES;
+        }
     }
 
     /**
@@ -485,15 +813,89 @@ public class TrimProcessV3CSV {
     public void processExports() throws VEOFatal {
         int i;
         String file;
+        HashSet<String> exts;
 
         // go through the list of files
-        freemem = r.freeMemory();
-        for (i = 0; i < files.size(); i++) {
-            file = files.get(i);
-            if (file == null) {
-                continue;
+        heapMonitor = new HeapMonitor(heapLimit / 100.0);
+        LOG.log(Level.INFO, "Indexing content directory ''{0}''", new Object[]{contentDirectory.toAbsolutePath().toString()});
+        try {
+            contentIndex = new ContentIndex(contentDirectory, outputDirectory, contentIgnoreCase);
+        } catch (IOException ioe) {
+            throw new VEOFatal("Failed indexing content directory '" + contentDirectory.toAbsolutePath().toString() + "': " + ioe.getMessage());
+        }
+        LOG.log(Level.SEVERE, "Content directory: {0} files indexed in {1} ms", new Object[]{contentIndex.size(), contentIndex.buildTime()});
+        exts = contentIndex.extensions();
+        exts.add(".txt"); // the dummy content file
+        types = new ContentTypes(ltsf, compression, exts);
+        LOG.log(Level.SEVERE, "Content types: {0} file extensions classified, {1} in a long term sustainable format, {2} stored rather than deflated", new Object[]{types.size(), types.sustainable(), types.stored()});
+        contentFiles = new ContentRegistry(contentDirectory, contentIndex);
+        contentCheck = new ContentCheck(contentIndex);
+        journal = new BuildJournal(outputDirectory.resolve("BuildJournal.txt"), hashAlg, resume);
+        if (resume) {
+            LOG.log(Level.SEVERE, "Build journal records {0} VEOs built by an earlier run", journal.resumable());
+        }
+        if (vthreads) {
+            vbuilders = virtualThreads();
+            vbuilding = new Semaphore(maxVEOs);
+        } else if (threads > 1) {
+            stages = new BuildStage[3];
+            stages[RENDER] = new BuildStage("Render", threads, threads);
+            stages[SIGN] = new BuildStage("Sign", threads, threads);
+            stages[PACKAGE] = new BuildStage("Package", threads, threads);
+        }
+        if (threads > 1) {
+            parsers = new ForkJoinPool(threads);
+        }
+        if (maxOpenFiles > 0) {
+            openFiles = new Semaphore(maxOpenFiles);
+        }
+        if (forkJoin) {
+            renderers = new ForkJoinPool(Math.max(CHECK_THREADS, Runtime.getRuntime().availableProcessors()));
+        }
+        checkers = Executors.newFixedThreadPool(Math.max(CHECK_THREADS, threads * 2));
+        if (direct) {
+            deflaters = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        }
+        try {
+            for (i = 0; i < files.size(); i++) {
+                file = files.get(i);
+                if (file == null) {
+                    continue;
+                }
+                processTRIMEntityFile(sourceDirectory.resolve(file));
+            }
+        } finally {
+            if (stages != null) {
+                for (i = 0; i < stages.length; i++) {
+                    stages[i].shutdown();
+                }
+            }
+            if (vbuilders != null) {
+                vbuilders.shutdown();
+                vbuilders = null;
+            }
+            if (renderers != null) {
+                renderers.shutdown();
+                renderers = null;
+            }
+            if (parsers != null) {
+                parsers.shutdown();
+                parsers = null;
+            }
+            checkers.shutdown();
+            checkers = null;
+            if (deflaters != null) {
+                deflaters.shutdown();
+                deflaters = null;
+            }
+            journal.close();
+            if (dummyLTSF != null) {
+                try {
+                    Files.deleteIfExists(dummyLTSF.path);
+                } catch (IOException ioe) {
+                    LOG.log(Level.WARNING, "Failed deleting dummy content file ''{0}'': {1}", new Object[]{dummyLTSF.path.toString(), ioe.getMessage()});
+                }
             }
-            processTRIMEntityFile(sourceDirectory.resolve(file));
         }
     }
 
@@ -503,7 +905,10 @@ public class TrimProcessV3CSV {
      * Read the TRIM entity file and extract the details for building the VEOs
      */
     private void processTRIMEntityFile(Path f) throws VEOFatal {
-        SortedMap<String, TrimEntity> entities; // record of entities found or referenced
+        LongIntMap entities;    // record of entities found or referenced (index in store by encoded id)
+        int[] order;            // entities in the file (in id order)
+        ExportColumns cols;     // column labels and indexes found in the file
+        long start;
 
         // check that file or directory exists
         LOG.log(Level.INFO, "Extracting TRIM entities from ''{0}''", new Object[]{f.toAbsolutePath().toString()});
@@ -515,14 +920,28 @@ public class TrimProcessV3CSV {
         // convert the TRIM entity file into a set of TRIM entities & process them
         try {
             LOG.log(Level.INFO, "Reading TRIM entities");
-            entities = readTrimEntityFile(f);
-            if (entities != null) {
+            cols = new ExportColumns();
+            entities = new LongIntMap(1024);
+            start = System.nanoTime();
+            order = readTrimEntityFile(f, cols, entities);
+            parseTime.since(start);
+            if (order.length > 0) {
+                LOG.log(Level.INFO, "Indexing the TRIM entities");
+                buildChildIndex(order, entities);
+                if (resume) {
+                    LOG.log(Level.INFO, "Finding the VEOs built by an earlier run");
+                    skipBuilt(order, cols);
+                }
+                LOG.log(Level.INFO, "Checking the content files");
+                start = System.nanoTime();
+                checkContent(order);
+                checkTime.since(start);
                 LOG.log(Level.INFO, "Processing the TRIM entities");
-                processTrimEntities(entities);
+                processTrimEntities(order, cols);
             } else {
                 LOG.log(Level.INFO, "No TRIM entities found to be processed");
             }
-            rememberTrimEntities(entities, f.getParent());
+            rememberTrimEntities(order);
         } catch (VEOError e) {
             throw new VEOFatal("***Failed to read TRIM entity file '" + f.toAbsolutePath().toString() + "' because: " + e.getMessage());
         }
@@ -530,517 +949,1307 @@ public class TrimProcessV3CSV {
 
     /**
      * Read the TRIM entity file. The entity file contains details about the
-     * TRIM entities produced during this export. This is a text table with each
-     * line consisting of multiple strings separated by tabs. The first line
-     * contains the titles of the columns (i.e. metadata labels). Each
-     * subsequent line contains one TRIM entity
+     * TRIM entities produced during this export. This is a UTF-16 text table
+     * with each line consisting of multiple strings separated by tabs. The
+     * first line contains the titles of the columns (i.e. metadata labels).
+     * Each subsequent line contains one TRIM entity. The file is read using a
+     * TrimExportReader, which maps the file and only converts the fields
+     * asked for into Strings. The columns in ExportColumns are converted into
+     * Strings as the file is read; the other columns are only converted when
+     * the TRIM metadata package is generated. The entities are added to the
+     * entity store.
      *
      * @param f the path of the TRIM entity file
-     * @return a sorted map of TRIM entities in the file
+     * @param cols the column labels and indexes found in the file
+     * @param entities the map from the encoded id of each TRIM entity in the
+     * file to its index in the entity store (filled in)
+     * @return the index of each entity in the file, sorted by id
      * @throws VEOError if an error occurred, but processing can continue with
      * other files
      */
-    private SortedMap<String, TrimEntity> readTrimEntityFile(Path f) throws VEOFatal {
+    private int[] readTrimEntityFile(Path f, ExportColumns cols, LongIntMap entities) throws VEOFatal {
         Path dir;
-        FileReader fr = null;
-        BufferedReader br = null;
-        String line, key;
+        TrimExportReader ter;
+        TrimExportReader.Row row;
         String[] tokens;
-        int i;
-        int lineNo;
-        TrimEntity te;
-        SortedMap<String, TrimEntity> entities; // record of entities found or referenced
+        int i, fileNo, first;
 
         // get the directory that contains this TRIM entity file
         dir = f.getParent();
         if (dir == null) {
             throw new VEOFatal("Failed because could not open parent directory");
         }
-        entities = new TreeMap<>();
         try {
-            FileInputStream fs = new FileInputStream(f.toFile());
-            InputStreamReader isr = new InputStreamReader(fs, StandardCharsets.UTF_16);
-            br = new BufferedReader(isr);
-            idCol = -1;
-            containerCol = -1;
-            containedCol = -1;
-            titleCol = -1;
-            dateCreatedCol = -1;
-            recordTypeCol = -1;
-            isPartCol = -1;
-            docFileCol = -1;
-            retSchCol = -1;
-            lineNo = 1;
-            while ((line = br.readLine()) != null) {
-
-                // read a line and split it at tabs
-                //line = line.trim();
-                if (line.isEmpty()) {
-                    continue;
-                }
-                tokens = line.split("\t");
-
-                // assume that the first row has the column headings. This
-                // remembers the column number of metadata elements that will
-                // be later pulled out.
-                if (lineNo == 1) {
-                    LOG.log(Level.FINE, "Columns in source TSV file:  {0}", new Object[]{tokens.length});
-                    for (i = 0; i < tokens.length; i++) {
-                        switch (tokens[i].trim()) {
-                            case "Expanded Number":
-                                idCol = i;
-                                break;
-                            case "Folder":
-                            case "Container":
-                                containerCol = i;
-                                break;
-                            case "*Contained Records*":
-                                containedCol = i;
-                                break;
-                            case "Title (Free Text Part)":
-                                titleCol = i;
-                                break;
-                            case "Classification":
-                                classificationCol = i;
-                                break;
-                            case "Date Created":
-                                dateCreatedCol = i;
-                                break;
-                            case "Date Registered":
-                                dateRegisteredCol = i;
-                                break;
-                            case "Record Type":
-                                recordTypeCol = i;
-                                break;
-                            case "*Is Part*":
-                                isPartCol = i;
-                                break;
-                            case "DOS file":
-                                docFileCol = i;
-                                break;
-                            case "Retention schedule":
-                                retSchCol = i;
-                                break;
-                            default:
-                                break;
-                        }
-                    }
-                    if (idCol == -1) {
-                        throw new VEOFatal("Could not find 'Expanded Number' column");
-                    }
-                    if (containerCol == -1) {
-                        throw new VEOFatal("Could not find 'Container' column");
-                    }
-                    /*
-                    if (containedCol == -1) {
-                        throw new VEOError("Error reading '" + f.toRealPath().toString() + "': Could not find '*Contained Records*' column");
-                    }
-                     */
-                    if (titleCol == -1) {
-                        throw new VEOFatal("Could not find 'Title (Free Text Part)' column");
-                    }
-                    if (classificationCol == -1) {
-                        throw new VEOFatal("Could not find 'Classification' column");
-                    }
-                    if (dateCreatedCol == -1) {
-                        throw new VEOFatal("Could not find 'Date Created' column");
-                    }
-                    if (dateRegisteredCol == -1) {
-                        throw new VEOFatal("Could not find 'Date Registered' column");
-                    }
-                    if (recordTypeCol == -1) {
-                        throw new VEOFatal("Could not find 'Record Type' column");
-                    }
-                    /*
-                    if (isPartCol == -1) {
-                        throw new VEOError("Error reading '" + f.toRealPath().toString() + "': Could not find '*Is Part*' column");
-                    }
-                     */
-                    if (docFileCol == -1) {
-                        throw new VEOFatal("Could not find 'DOS File' column");
-                    }
-                    if (retSchCol == -1) {
-                        throw new VEOFatal("Could not find 'Retention schedule' column");
-                    }
-                    labels = tokens;
-                } else if (lineNo > 1) {
-                    // create a TrimEntity of this row
-                    key = tokens[idCol].trim();
-                    te = entities.get(key);
-                    if (te == null) {
-                        te = new TrimEntity(key, tokens, dir);
-                        entities.put(key, te);
-                    }
-                    te.defined = true;
+            ter = new TrimExportReader(f);
+            row = new TrimExportReader.Row();
+            if (!ter.next(row)) {
+                return new int[0];
+            }
 
-                    te.veoName = tokens[idCol];
-                    if (tokens[containerCol] != null && !tokens[containerCol].equals("")) {
-                        te.container = new TrimID(tokens[containerCol]);
-                    }
-                    te.title = tokens[titleCol];
-                    te.dateCreated = tokens[dateCreatedCol];
-                    te.contentFile = tokens[docFileCol];
-                    te.dateRegistered = tokens[dateRegisteredCol];
-                    te.classification = tokens[classificationCol];
-                    switch (tokens[recordTypeCol]) {
-                        case "CABINET FILE":
-                            te.recordType = "Cabinet File";
-                            break;
-                        case "CABINET DOCUMENT":
-                            te.recordType = "Cabinet Document";
-                            break;
-                        case "CORPORATE DOCUMENT":
-                            te.recordType = "Corporate Document";
-                            break;
-                        case "DOCUMENT GROUP":
-                            te.recordType = "Document Group";
-                            break;
-                        case "EBC DOCUMENT":
-                            te.recordType = "EBC Document";
-                            break;
-                        case "EBC FOLDER":
-                            te.recordType = "EBC Folder";
-                            break;
-                        case "MINISTERIAL BRIEFING - VERS":
-                            te.recordType = "Ministerial Briefing - VERS";
-                            break;
-                        case "MINISTERIAL BRIEFING":
-                            te.recordType = "Ministerial Briefing";
-                            break;
-                        case "MINISTERIAL CORRESPONDENCE  - VERS":
-                            te.recordType = "Ministerial Correspondence - VERS";
-                            break;
-                        default:
-                            LOG.log(Level.WARNING, "Unhandled record type: ''{0}'' in ''{1}''", new Object[]{tokens[recordTypeCol], f.toAbsolutePath().toString()});
-                            te.recordType = tokens[recordTypeCol];
-                            break;
-                    }
-                    te.retentionSchedule = tokens[retSchCol];
-                    LOG.log(Level.INFO, "Metadata extracted from line({0}): ''{1}''", new Object[]{lineNo, te.toString()});
+            // assume that the first row has the column headings. This
+            // remembers the column number of metadata elements that will
+            // be later pulled out.
+            tokens = row.toArray();
+            LOG.log(Level.FINE, "Columns in source TSV file:  {0}", new Object[]{tokens.length});
+            for (i = 0; i < tokens.length; i++) {
+                switch (tokens[i].trim()) {
+                    case "Expanded Number":
+                        cols.idCol = i;
+                        break;
+                    case "Folder":
+                    case "Container":
+                        cols.containerCol = i;
+                        break;
+                    case "*Contained Records*":
+                        cols.containedCol = i;
+                        break;
+                    case "Title (Free Text Part)":
+                        cols.titleCol = i;
+                        break;
+                    case "Classification":
+                        cols.classificationCol = i;
+                        break;
+                    case "Date Created":
+                        cols.dateCreatedCol = i;
+                        break;
+                    case "Date Registered":
+                        cols.dateRegisteredCol = i;
+                        break;
+                    case "Record Type":
+                        cols.recordTypeCol = i;
+                        break;
+                    case "*Is Part*":
+                        cols.isPartCol = i;
+                        break;
+                    case "DOS file":
+                        cols.docFileCol = i;
+                        break;
+                    case "Retention schedule":
+                        cols.retSchCol = i;
+                        break;
+                    default:
+                        break;
                 }
-                lineNo++;
             }
-        } catch (FileNotFoundException fnfe) {
+            if (cols.idCol == -1) {
+                throw new VEOFatal("Could not find 'Expanded Number' column");
+            }
+            if (cols.containerCol == -1) {
+                throw new VEOFatal("Could not find 'Container' column");
+            }
+            /*
+            if (cols.containedCol == -1) {
+                throw new VEOError("Error reading '" + f.toRealPath().toString() + "': Could not find '*Contained Records*' column");
+            }
+             */
+            if (cols.titleCol == -1) {
+                throw new VEOFatal("Could not find 'Title (Free Text Part)' column");
+            }
+            if (cols.classificationCol == -1) {
+                throw new VEOFatal("Could not find 'Classification' column");
+            }
+            if (cols.dateCreatedCol == -1) {
+                throw new VEOFatal("Could not find 'Date Created' column");
+            }
+            if (cols.dateRegisteredCol == -1) {
+                throw new VEOFatal("Could not find 'Date Registered' column");
+            }
+            if (cols.recordTypeCol == -1) {
+                throw new VEOFatal("Could not find 'Record Type' column");
+            }
+            /*
+            if (cols.isPartCol == -1) {
+                throw new VEOError("Error reading '" + f.toRealPath().toString() + "': Could not find '*Is Part*' column");
+            }
+             */
+            if (cols.docFileCol == -1) {
+                throw new VEOFatal("Could not find 'DOS File' column");
+            }
+            if (cols.retSchCol == -1) {
+                throw new VEOFatal("Could not find 'Retention schedule' column");
+            }
+            cols.labels = tokens;
+            // read the TRIM entities. Large files are split into chunks that
+            // are read in parallel, with the entities from each chunk merged
+            // back into the entity store in file order
+            fileNo = store.addFile(ter, dir, cols);
+            first = store.size;
+            if (parsers != null && ter.remaining() > PARALLEL_PARSE_SIZE) {
+                readTrimEntityChunks(ter.split(threads * 4), fileNo, entities, f);
+            } else {
+                readTrimEntities(ter, store, fileNo, entities, f, 0);
+            }
+        } catch (NoSuchFileException nsfe) {
             throw new VEOFatal("File does not exist");
         } catch (IOException ioe) {
             throw new VEOFatal("Error when reading TRIM entity file: " + ioe.getMessage());
-        } finally {
+        }
+
+        // the entities in a file are added to the end of the store
+        return store.sortById(first, store.size);
+    }
+
+    /**
+     * Read the chunks of a large TRIM entity file in parallel on the
+     * ForkJoinPool. Each chunk is read into its own entity store, and these
+     * are then copied into the entity store in file order. If the same id
+     * appears in more than one chunk, the entity from the earlier chunk is
+     * kept and updated from the later one, just as if the file had been read
+     * in order.
+     *
+     * @param chunks the chunks of the file
+     * @param fileNo the number of the file in the entity store
+     * @param entities the map from encoded id to entity store index to add to
+     * @param f the TRIM entity file
+     */
+    private void readTrimEntityChunks(List<TrimExportReader> chunks, int fileNo, LongIntMap entities, Path f) {
+        ArrayList<Callable<EntityStore>> tasks;
+        List<Future<EntityStore>> results;
+        EntityStore es;
+        int i, j, k;
+
+        tasks = new ArrayList<>();
+        for (i = 0; i < chunks.size(); i++) {
+            final TrimExportReader chunk = chunks.get(i);
+            final int chunkNo = i + 1;
+            tasks.add(() -> {
+                EntityStore local = new EntityStore();
+                readTrimEntities(chunk, local, local.addFile(chunk, store.dir(fileNo), store.cols(fileNo)), new LongIntMap(1024), f, chunkNo);
+                return local;
+            });
+        }
+        results = parsers.invokeAll(tasks);
+        for (i = 0; i < results.size(); i++) {
             try {
-                if (br != null) {
-                    br.close();
+                es = results.get(i).get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new Error("Interrupted while reading '" + f.toString() + "'");
+            } catch (ExecutionException ee) {
+                if (ee.getCause() instanceof Error) {
+                    throw (Error) ee.getCause();
                 }
-            } catch (IOException e) {
-                /* ignore */
+                throw (RuntimeException) ee.getCause();
             }
-            try {
-                if (fr != null) {
-                    fr.close();
+            for (k = 0; k < es.size; k++) {
+                j = entities.get(es.ids[k]);
+                if (j == LongIntMap.NONE) {
+                    entities.put(es.ids[k], store.copy(es, k, fileNo));
+                } else {
+                    store.update(j, es, k);
                 }
-            } catch (IOException e) {
-                /* ignore */
             }
         }
-        return entities;
     }
 
     /**
-     * Remember the TRIM entities for the reporting at the end of the run.
+     * Read the TRIM entities from (part of) a TRIM entity file. Each line
+     * contains one TRIM entity. The header line must already have been read.
+     *
+     * @param ter the reader positioned at the first line to be read
+     * @param es the entity store to add the entities to
+     * @param fileNo the number of the file in the entity store
+     * @param entities the map from encoded id to entity store index to add to
+     * @param f the path of the TRIM entity file
+     * @param chunk the number of the chunk being read (0 if reading the whole
+     * file)
      */
-    private void rememberTrimEntities(SortedMap<String, TrimEntity> entities, Path dir) throws VEOError {
-        Iterator<String> it;
-        String key, refID;
-        TrimEntity te, te1;
-        int i;
-
-        // go through TRIM entities
-        it = entities.keySet().iterator();
-        while (it.hasNext()) {
-            key = it.next();
-            te = entities.get(key);
-
-            // if this contains other entities, mark the others as referenced
-            if (te.refs != null) {
-                for (i = 0; i < te.refs.size(); i++) {
-                    refID = te.refs.get(i);
-                    te1 = entities.get(refID);
-                    if (te1 == null) {
-                        te1 = new TrimEntity(key, null, dir);
-                        allEntities.put(key, te1);
-                    }
-                    te1.referenced = true;
-                    te1.referencedBy.append(key + ", ");
-                }
+    private void readTrimEntities(TrimExportReader ter, EntityStore es, int fileNo, LongIntMap entities, Path f, int chunk) {
+        TrimExportReader.Row row;
+        ExportColumns cols;
+        String s;
+        long id;
+        int lineNo, te;
+
+        cols = es.cols(fileNo);
+        row = new TrimExportReader.Row();
+        lineNo = chunk == 0 ? 2 : 1;
+        while (ter.next(row)) {
+            // add a TRIM entity for this row
+            id = trimIds.encode(row.get(cols.idCol).trim());
+            te = entities.get(id);
+            if (te == LongIntMap.NONE) {
+                te = es.add(fileNo, row, id);
+                entities.put(id, te);
             }
+            es.set(te, EntityStore.DEFINED);
 
-            // add to complete list of entities seen
-            allEntities.put(key, te);
+            es.veoName[te] = row.get(cols.idCol);
+            s = row.get(cols.containerCol);
+            if (!s.equals("")) {
+                es.container[te] = trimIds.encode(s);
+            }
+            es.title[te] = row.get(cols.titleCol);
+            es.dateCreated[te] = row.get(cols.dateCreatedCol);
+            es.contentFile[te] = row.get(cols.docFileCol);
+            es.dateRegistered[te] = row.get(cols.dateRegisteredCol);
+            es.classification[te] = classifications.add(row.get(cols.classificationCol), Function.identity());
+            es.recordType[te] = recordTypes.add(row.get(cols.recordTypeCol), rt -> mapRecordType(rt, f));
+            es.retentionSchedule[te] = retentionSchedules.add(row.get(cols.retSchCol), Function.identity());
+            if (chunk == 0) {
+                LOG.log(Level.INFO, "Metadata extracted from line({0}): ''{1}''", new Object[]{lineNo, es.describe(te)});
+            } else {
+                LOG.log(Level.INFO, "Metadata extracted from line({0}) of chunk {1}: ''{2}''", new Object[]{lineNo, chunk, es.describe(te)});
+            }
+            lineNo++;
         }
     }
 
     /**
-     * Process the TRIM entities This function goes through list of TRIM
-     * entities read from the TRIM export file and selects the root entities to
-     * construct VEOs from
+     * Map a TRIM record type into the description used in the VEO. This is
+     * only called the first time a record type is seen while the record type
+     * column is dictionary encoded.
+     *
+     * @param s the record type read from the export file
+     * @param f the TRIM entity file (for reporting)
+     * @return the description
      */
-    private void processTrimEntities(SortedMap<String, TrimEntity> entities) {
-        Iterator<String> it;
-        String key;
-        TrimEntity te;
-
-        // go through TRIM entities
-        it = entities.keySet().iterator();
-        while (it.hasNext()) {
-            key = it.next();
-            te = entities.get(key);
-
-            // process the entity if it is a root entity
-            if (te.tokens[containerCol] == null || te.tokens[containerCol].equals("")) {
-                te.root = true;
-                try {
-                    createVEO(te, entities);
-                } catch (VEOError | AppError e) {
-                    LOG.log(Level.SEVERE, "Failed to build VEO ''{0}'' because {1}", new Object[]{key, e.getMessage()});
-                }
-            }
+    private String mapRecordType(String s, Path f) {
+        switch (s) {
+            case "CABINET FILE":
+                return "Cabinet File";
+            case "CABINET DOCUMENT":
+                return "Cabinet Document";
+            case "CORPORATE DOCUMENT":
+                return "Corporate Document";
+            case "DOCUMENT GROUP":
+                return "Document Group";
+            case "EBC DOCUMENT":
+                return "EBC Document";
+            case "EBC FOLDER":
+                return "EBC Folder";
+            case "MINISTERIAL BRIEFING - VERS":
+                return "Ministerial Briefing - VERS";
+            case "MINISTERIAL BRIEFING":
+                return "Ministerial Briefing";
+            case "MINISTERIAL CORRESPONDENCE  - VERS":
+                return "Ministerial Correspondence - VERS";
+            default:
+                LOG.log(Level.WARNING, "Unhandled record type: ''{0}'' in ''{1}''", new Object[]{s, f.toAbsolutePath().toString()});
+                return s;
         }
     }
 
     /**
-     * Create VEO
-     *
-     * This method creates a new VEO
+     * Build an index from each parent to its children. Each entity is linked
+     * to the entity that contains it (looking up the encoded container id in
+     * the map of entities in this file), and the children of each parent are
+     * linked in id order. This replaces scanning the complete list of
+     * entities for the children of every entity. As before, containers are
+     * matched on the normalised form of the id (e.g. a container of
+     * 'CF/2018/1' matches the entity 'CF/18/1'); if two entities have the
+     * same normalised id, the one written in normalised form is the parent.
      *
-     * @param xmlFile	the file to parse
-     * @throws VEOError if an error occurred that prevented the processing of
-     * this XML file
+     * @param order the TRIM entities read from an export file (in id order)
+     * @param entities the map from encoded id to entity store index
      */
-    private void createVEO(TrimEntity base, SortedMap<String, TrimEntity> entities) throws VEOError, AppError {
-        long l;
-        CreateVEO cv;
-        Path p;
-        String recordName;      // name of this record element (the id of the root TRIM entity)
-        String description[] = {"Created with TrimProcessV3"};
-        String errors[] = {""};
-        SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
-
-        // check parameters
-        if (base == null) {
-            throw new VEOFatal("createVEO: Passed null base to be processed");
-        }
-        if (entities == null) {
-            throw new VEOFatal("createVEO: Passed null list of entities to be processed");
+    private void buildChildIndex(int[] order, LongIntMap entities) {
+        LongIntMap aliases;
+        long start, id;
+        int i, te, parent, count, parents;
+
+        start = System.currentTimeMillis();
+
+        // find the entities whose ids are not written in normalised form
+        aliases = new LongIntMap(16);
+        for (i = 0; i < order.length; i++) {
+            id = trimIds.normalise(store.ids[order[i]]);
+            if (id != store.ids[order[i]] && aliases.get(id) == LongIntMap.NONE) {
+                aliases.put(id, order[i]);
+            }
         }
 
-        // reset, free memory, and print status
-        baos.reset();
-        r.gc();
-        l = r.freeMemory();
-        LOG.log(Level.INFO, "{0} Processing: {1}", new Object[]{sdf.format(new Date()), base.name});
-        freemem = l;
-        dummyLTSFCF = null;
+        // link the children in reverse order, so that each list of children
+        // ends up in id order
+        count = 0;
+        parents = 0;
+        for (i = order.length - 1; i >= 0; i--) {
+            te = order[i];
+            if (store.container[te] == TrimIdCodec.NONE) {
+                continue;
+            }
+            id = trimIds.normalise(store.container[te]);
+            if ((parent = entities.get(id)) == LongIntMap.NONE && (parent = aliases.get(id)) == LongIntMap.NONE) {
+                continue;
+            }
+            if (store.firstChild[parent] == EntityStore.NONE) {
+                parents++;
+            }
+            store.parent[te] = parent;
+            store.nextSibling[te] = store.firstChild[parent];
+            store.firstChild[parent] = te;
+            count++;
+        }
+        indexBuildTime += System.currentTimeMillis() - start;
+        indexParents += parents;
+        indexChildren += count;
+        LOG.log(Level.FINE, "Child index: {0} parents, {1} children", new Object[]{parents, count});
+    }
 
-        // get the record name from the root TRIM entity
-        recordName = base.id.toString().replace('/', '-');
+    /**
+     * Remember the TRIM entities for the reporting at the end of the run. An
+     * entity with the same id as one from an earlier file replaces it.
+     */
+    private void rememberTrimEntities(int[] order) {
+        int i;
 
-        // create a record directory in the output directory
-        p = Paths.get(outputDirectory.toString(), recordName + ".veo");
-        if (!deleteDirectory(p)) {
-            throw new VEOError("Arrgh: directory '" + p.toString() + "' already exists & couldn't be deleted");
-        }
-        try {
-            veoDirectory = Files.createDirectory(p);
-        } catch (IOException ioe) {
-            throw new VEOError("Arrgh: could not create record directory '" + p.toString() + "': " + ioe.toString());
+        for (i = 0; i < order.length; i++) {
+            allEntities.put(store.ids[order[i]], order[i]);
         }
+    }
 
-        // create VEO...
-        cv = new CreateVEO(outputDirectory, recordName, hashAlg, verbose);
-        try {
-            cv.addVEOReadme(supportDir);
-            cv.addEvent(versDateTime(System.currentTimeMillis()), "Converted to VEO", userId, description, errors);
-            processTrimEntity(base, entities, cv, recordName, 1, recordName + ".veo.zip");
-            cv.finishFiles();
-            cv.sign(user, hashAlg);
-            cv.finalise(true);
-            base.exported = true;
-        } catch (VEOError ve) {
-            cv.abandon(true);
-            throw new VEOError(ve.getMessage());
-        } finally {
-            System.gc();
-        }
+    /**
+     * Find the root entities whose VEOs were completely built by an earlier
+     * run (-resume). These are marked as exported before the content files are
+     * checked, so that the content files of these VEOs are not read, and the
+     * VEOs are not built again.
+     *
+     * @param order the TRIM entities read from an export file
+     * @param cols the columns of the export file
+     */
+    private void skipBuilt(int[] order, ExportColumns cols) {
+        String id;
+        int i, te;
 
-        // count the number of exports successfully processed
-        exportCount++;
+        for (i = 0; i < order.length; i++) {
+            te = order[i];
+            if (!store.fieldEmpty(te, cols.containerCol)) {
+                continue;
+            }
+            id = trimIds.toString(store.ids[te]);
+            if (journal.isBuilt(id, outputDirectory.resolve(trimIds.toString(trimIds.normalise(store.ids[te])).replace('/', '-') + ".veo.zip"))) {
+                LOG.log(Level.INFO, "Not building ''{0}'' as it was built by an earlier run", new Object[]{id});
+                store.set(te, EntityStore.ROOT);
+                store.set(te, EntityStore.EXPORTED);
+                resumedCount.incrementAndGet();
+            }
+        }
     }
 
     /**
-     * Process TRIM entity
-     *
-     * @param cv the VEO being created
-     * @param xmlFile	the file to parse
-     * @param recordName the name of the Information Object to be produced
-     * @param depth the depth of the Information Object
-     * @param veoName the name of the VEO being produced
-     * @throws VEOError if an error occurred that prevented the processing of
-     * this XML file
+     * Process the TRIM entities This function goes through list of TRIM
+     * entities read from the TRIM export file and selects the root entities to
+     * construct VEOs from. If building concurrently, the VEOs are started
+     * most expensive first (longest processing time first scheduling), and
+     * this function waits until all the VEOs from this file have been built.
      */
-    private void processTrimEntity(TrimEntity base, SortedMap<String, TrimEntity> entities, CreateVEO cv, String recordName, int depth, String veoName) throws VEOError, AppError {
-        int i;
-        String label;
-        String[] data = {};
-        ArrayList<String> children;
-        URI uri;
-        String s;
-        Iterator<String> teKeys;
-        String[] contents;
-        TrimEntity t;
-        Path p;
+    private void processTrimEntities(int[] order, ExportColumns cols) {
+        ArrayList<Future<?>> builds;
+        ArrayList<RootCost> roots;
+        String id;
+        long start;
+        int i, te;
 
-        // set up
-        revisions = new ArrayList<>();
-        renditions = new ArrayList<>();
-        attachments = new ArrayList<>();
-        children = new ArrayList<>();
+        // go through TRIM entities
+        start = System.nanoTime();
+        builds = new ArrayList<>();
+        roots = new ArrayList<>();
+        for (i = 0; i < order.length; i++) {
+            te = order[i];
 
-        staticChildren = null;
+            // process the entity if it is a root entity
+            if (store.fieldEmpty(te, cols.containerCol)) {
+                store.set(te, EntityStore.ROOT);
+
+                // skip the root if its VEO was built by an earlier run (see
+                // skipBuilt())
+                if (store.is(te, EntityStore.EXPORTED)) {
+                    continue;
+                }
+
+                // skip the root if any of its content files has a problem
+                id = trimIds.toString(store.ids[te]);
+                if (store.is(te, EntityStore.EXCLUDED)) {
+                    LOG.log(Level.WARNING, "Not building ''{0}'' because of problems with its content files", new Object[]{id});
+                    contentCheck.excluded();
+                    continue;
+                }
+                roots.add(estimateCost(te));
+            }
+        }
+
+        // if building concurrently, start the most expensive VEOs first so
+        // that the run does not end building one large VEO on its own. The
+        // sort is stable, so VEOs of the same cost stay in id order
+        if (vbuilders != null || stages != null) {
+            roots.sort((a, b) -> Long.compare(b.estimate, a.estimate));
+        }
+        rootCosts.addAll(roots);
+
+        // build the VEOs
+        for (i = 0; i < roots.size(); i++) {
+            final RootCost rc = roots.get(i);
+            if (vbuilders != null) {
+
+                // wait until fewer than the maximum number of VEOs are being
+                // built, and admit the VEO, before starting its thread. The
+                // heap occupancy is only measured after a collection, so it
+                // lags behind VEOs that have just started; without the limit
+                // nearly every VEO would start at once, each with its own
+                // metadata files open
+                try {
+                    vbuilding.acquire();
+                    heapMonitor.admit();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    LOG.log(Level.SEVERE, "Interrupted while waiting to build VEOs");
+                    return;
+                }
+                builds.add(vbuilders.submit(() -> buildAdmittedVEO(rc, cols)));
+            } else if (stages == null) {
+                buildVEO(rc, cols);
+            } else {
+                final BuildContext bc = new BuildContext(cols);
+                bc.base = rc.te;
+                bc.cost = rc;
+                builds.add(bc.done);
+                try {
+                    stages[RENDER].submit(() -> runStage(bc, RENDER));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    LOG.log(Level.SEVERE, "Interrupted while waiting to build VEOs");
+                    return;
+                }
+            }
+        }
+
+        // wait for the VEOs being built concurrently to finish. Errors that
+        // would have stopped the program if building one at a time are
+        // rethrown
+        for (i = 0; i < builds.size(); i++) {
+            try {
+                builds.get(i).get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                LOG.log(Level.SEVERE, "Interrupted while waiting for VEOs to be built");
+                return;
+            } catch (ExecutionException ee) {
+                if (ee.getCause() instanceof Error) {
+                    throw (Error) ee.getCause();
+                }
+                if (ee.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) ee.getCause();
+                }
+                LOG.log(Level.SEVERE, "Failed building VEO: {0}", new Object[]{ee.getMessage()});
+            }
+        }
+        buildElapsed += System.nanoTime() - start;
+    }
+
+    /**
+     * Build a VEO from a root entity, reporting (but otherwise ignoring) any
+     * error. This can be run on any thread. The build does not start until
+     * the heap monitor admits it.
+     */
+    private void buildVEO(RootCost root, ExportColumns cols) {
+        try {
+            heapMonitor.admit();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            LOG.log(Level.SEVERE, "Failed to build VEO ''{0}'' because the build was interrupted", new Object[]{trimIds.toString(store.ids[root.te])});
+            return;
+        }
+        buildAdmittedVEO(root, cols);
+    }
+
+    /**
+     * Build a VEO from a root entity that the heap monitor has admitted,
+     * reporting (but otherwise ignoring) any error. The VEO is released from
+     * the heap monitor (and, with -vthreads, from the limit on the VEOs being
+     * built) when it has been built.
+     */
+    private void buildAdmittedVEO(RootCost root, ExportColumns cols) {
+        BuildContext bc;
+
+        bc = new BuildContext(cols);
+        bc.cost = root;
+        try {
+            createVEO(root.te, bc);
+        } catch (VEOError | AppError e) {
+            LOG.log(Level.SEVERE, "Failed to build VEO ''{0}'' because {1}", new Object[]{trimIds.toString(store.ids[root.te]), e.getMessage()});
+        } finally {
+            heapMonitor.release();
+            if (vbuilding != null) {
+                vbuilding.release();
+            }
+        }
+    }
+
+    /**
+     * Get an executor that runs each VEO on its own virtual thread
+     * (-vthreads). Virtual threads were added in Java 21, so the executor is
+     * found by reflection; on an earlier Java a pool of ordinary threads is
+     * used instead, with a thread for each content file that may be read at
+     * once.
+     *
+     * @return the executor
+     */
+    private ExecutorService virtualThreads() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException roe) {
+            LOG.log(Level.WARNING, "Virtual threads are not available in Java {0}; building VEOs on {1} threads instead", new Object[]{System.getProperty("java.version"), maxOpenFiles});
+            return Executors.newFixedThreadPool(maxOpenFiles);
+        }
+    }
+
+    /**
+     * Wait until another content file can be read (-openFiles). This is
+     * called before each content file is read: by CreateVEO when it is added
+     * (to hash it) and when the VEO is finalised (to zip it), when it is
+     * written directly into the VEO, or when it is read ahead (-forkJoin).
+     * Each call must be matched by a call to closeContent(). The time spent
+     * waiting is recorded separately, so that it is not counted as time spent
+     * reading the content file.
+     *
+     * @return the time spent waiting (ns)
+     * @throws VEOError if interrupted while waiting
+     */
+    private long openContent() throws VEOError {
+        long start, waited;
+
+        if (openFiles == null) {
+            return 0;
+        }
+        start = System.nanoTime();
+        try {
+            openFiles.acquire();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new VEOError("Interrupted while waiting to read a content file");
+        }
+        waited = System.nanoTime() - start;
+        openWaitTime.record(waited);
+        return waited;
+    }
+
+    /**
+     * Record that a content file has been read
+     */
+    private void closeContent() {
+        if (openFiles != null) {
+            openFiles.release();
+        }
+    }
+
+    /**
+     * Run one stage of building a VEO in the pipeline, and then hand the VEO
+     * to the next stage (waiting if its queue is full). The heap monitor
+     * admits the VEO before it is rendered, and the VEO is released when it
+     * has been packaged or the build has failed. Errors that would have
+     * stopped the program if building one at a time are passed back to
+     * processTrimEntities.
+     *
+     * @param bc the state of the VEO being built
+     * @param stage the stage to run
+     */
+    private void runStage(BuildContext bc, int stage) {
+        try {
+            switch (stage) {
+                case RENDER:
+                    heapMonitor.admit();
+                    bc.admitted = true;
+                    renderVEO(bc.base, bc);
+                    break;
+                case SIGN:
+                    signVEO(bc);
+                    break;
+                default:
+                    packageVEO(bc);
+                    break;
+            }
+            if (stage != PACKAGE) {
+                stages[stage + 1].submit(() -> runStage(bc, stage + 1));
+                return;
+            }
+        } catch (VEOError | AppError e) {
+            LOG.log(Level.SEVERE, "Failed to build VEO ''{0}'' because {1}", new Object[]{trimIds.toString(store.ids[bc.base]), e.getMessage()});
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            LOG.log(Level.SEVERE, "Failed to build VEO ''{0}'' because the build was interrupted", new Object[]{trimIds.toString(store.ids[bc.base])});
+            if (bc.cv != null) {
+                bc.cv.abandon(true);
+            }
+        } catch (RuntimeException | Error e) {
+            if (bc.admitted) {
+                heapMonitor.release();
+            }
+            bc.done.completeExceptionally(e);
+            return;
+        }
+        if (bc.admitted) {
+            heapMonitor.release();
+        }
+        bc.done.complete(null);
+    }
+
+    /**
+     * Create VEO
+     *
+     * This method creates a new VEO, running each stage of building it in
+     * turn.
+     *
+     * @param base the index of the root TRIM entity of the VEO
+     * @param bc the state of this VEO while it is being built
+     * @throws VEOError if an error occurred that prevented the processing of
+     * this XML file
+     */
+    private void createVEO(int base, BuildContext bc) throws VEOError, AppError {
+        renderVEO(base, bc);
+        signVEO(bc);
+        packageVEO(bc);
+    }
+
+    /**
+     * Render the VEO: generate the metadata, add the content files, and
+     * finish the VEOContent and VEOHistory files.
+     *
+     * @param base the index of the root TRIM entity of the VEO
+     * @param bc the state of this VEO while it is being built
+     * @throws VEOError if an error occurred that prevented the processing of
+     * this XML file
+     */
+    private void renderVEO(int base, BuildContext bc) throws VEOError, AppError {
+        CreateVEO cv;
+        Path p;
+        String recordName;      // name of this record element (the id of the root TRIM entity)
+        String description[] = {"Created with TrimProcessV3"};
+        String errors[] = {""};
+        SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
+        long start;
+
+        // check parameters
+        if (base < 0 || base >= store.size) {
+            throw new VEOFatal("createVEO: Passed invalid base to be processed");
+        }
+        bc.base = base;
+        bc.veoStart = System.nanoTime();
+
+        // reset and print status
+        bc.baos.reset();
+        LOG.log(Level.INFO, "{0} Processing: {1}", new Object[]{sdf.format(new Date()), store.name(base)});
+        bc.directFiles.clear();
+
+        // get the record name from the root TRIM entity
+        recordName = trimIds.toString(trimIds.normalise(store.ids[base])).replace('/', '-');
+        bc.recordName = recordName;
+
+        // create a record directory in the output directory
+        p = Paths.get(outputDirectory.toString(), recordName + ".veo");
+        if (!deleteDirectory(p)) {
+            throw new VEOError("Arrgh: directory '" + p.toString() + "' already exists & couldn't be deleted");
+        }
+        try {
+            bc.veoDirectory = Files.createDirectory(p);
+        } catch (IOException ioe) {
+            throw new VEOError("Arrgh: could not create record directory '" + p.toString() + "': " + ioe.toString());
+        }
+
+        // create VEO...
+        cv = new CreateVEO(outputDirectory, recordName, hashAlg, verbose);
+        bc.cv = cv;
+        try {
+            cv.addVEOReadme(supportDir);
+            cv.addEvent(versDateTime(System.currentTimeMillis()), "Converted to VEO", userId, description, errors);
+            if (renderers != null && subtreeSize(base, FORK_JOIN_SIZE) >= FORK_JOIN_SIZE) {
+                addSubtree(bc, renderers.invoke(new SubtreeRenderer(bc.cols, base, recordName)), cv, 1);
+                forkJoined.incrementAndGet();
+            } else {
+                processTrimEntity(bc, base, cv, recordName, 1, recordName + ".veo.zip");
+            }
+            start = System.nanoTime();
+            cv.finishFiles();
+            finishTime.since(start);
+        } catch (VEOError ve) {
+            cv.abandon(true);
+            throw new VEOError(ve.getMessage());
+        }
+    }
+
+    /**
+     * Sign the VEO
+     *
+     * @param bc the state of this VEO while it is being built
+     * @throws VEOError if the VEO could not be signed
+     */
+    private void signVEO(BuildContext bc) throws VEOError {
+        long start;
+
+        try {
+            start = System.nanoTime();
+            bc.cv.sign(user, hashAlg);
+            signTime.since(start);
+        } catch (VEOError ve) {
+            bc.cv.abandon(true);
+            throw new VEOError(ve.getMessage());
+        }
+    }
+
+    /**
+     * Package the VEO: zip it (or write the zip file directly), and record it
+     * in the build journal.
+     *
+     * @param bc the state of this VEO while it is being built
+     * @throws VEOError if the VEO could not be zipped
+     */
+    private void packageVEO(BuildContext bc) throws VEOError {
+        VEOZipWriter zip;
+        long start;
+
+        try {
+            if (direct) {
+                start = System.nanoTime();
+                zip = writeVEO(bc, bc.recordName);
+                finaliseTime.record(System.nanoTime() - start - bc.packageWait);
+            } else {
+                openContent();
+                start = System.nanoTime();
+                try {
+                    bc.cv.finalise(true);
+                } finally {
+                    closeContent();
+                }
+                finaliseTime.since(start);
+                zip = null;
+            }
+            if (zip != null) {
+                journal.record(trimIds.toString(store.ids[bc.base]), outputDirectory.resolve(bc.recordName + ".veo.zip"), zip.size(), zip.digest());
+            } else {
+                journal.record(trimIds.toString(store.ids[bc.base]), outputDirectory.resolve(bc.recordName + ".veo.zip"));
+            }
+            store.set(bc.base, EntityStore.EXPORTED);
+        } catch (VEOError ve) {
+            bc.cv.abandon(true);
+            throw new VEOError(ve.getMessage());
+        }
+
+        // count the number of exports successfully processed
+        exportCount.incrementAndGet();
+        veoTime.since(bc.veoStart);
+        if (bc.cost != null) {
+            bc.cost.actual = System.nanoTime() - bc.veoStart;
+        }
+    }
+
+    /**
+     * Write the VEO (zip) file directly (-direct). The metadata files generated
+     * and signed by CreateVEO are copied from the VEO directory, and the
+     * content files are streamed from their source. The VEO directory is
+     * then deleted, unless in debug mode.
+     *
+     * @param bc the state of the VEO being built
+     * @param recordName the name of the VEO
+     * @return the writer, giving the size and digest of the zip file
+     * @throws VEOError if the zip file could not be written
+     */
+    private VEOZipWriter writeVEO(BuildContext bc, String recordName) throws VEOError {
+        VEOZipWriter zip;
+        HashSet<String> skip;
+        DirectFile df;
+        int i;
+
+        skip = new HashSet<>();
+        for (i = 0; i < bc.directFiles.size(); i++) {
+            skip.add(bc.directFiles.get(i).veoRef);
+        }
+        try {
+            zip = new VEOZipWriter(outputDirectory.resolve(recordName + ".veo.zip"), recordName, hashAlg, compression, deflaters, PARALLEL_DEFLATE_SIZE);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new VEOError("Could not create VEO '" + recordName + ".veo.zip': " + e.getMessage());
+        }
+        try {
+            zip.addMetadata(bc.veoDirectory, skip);
+            for (i = 0; i < bc.directFiles.size(); i++) {
+                df = bc.directFiles.get(i);
+                bc.packageWait += openContent();
+                try {
+                    zip.addContent(df.veoRef, df.source, df.type);
+                } finally {
+                    closeContent();
+                }
+            }
+            zip.close();
+        } catch (IOException ioe) {
+            zip.abandon();
+            throw new VEOError("Could not write VEO '" + recordName + ".veo.zip': " + ioe.getMessage());
+        }
+        if (!debug && !deleteDirectory(bc.veoDirectory)) {
+            LOG.log(Level.WARNING, "Could not delete VEO directory ''{0}''", new Object[]{bc.veoDirectory.toString()});
+        }
+        return zip;
+    }
+
+    /**
+     * Process TRIM entity
+     *
+     * @param bc the state of the VEO being built
+     * @param base the index of the TRIM entity to add to the VEO
+     * @param cv the VEO being created
+     * @param recordName the name of the Information Object to be produced
+     * @param depth the depth of the Information Object
+     * @param veoName the name of the VEO being produced
+     * @throws VEOError if an error occurred that prevented the processing of
+     * this XML file
+     */
+    private void processTrimEntity(BuildContext bc, int base, CreateVEO cv, String recordName, int depth, String veoName) throws VEOError, AppError {
+        int i;
+        ArrayList<String> children;
+        int t;
+
+        // set up
+        bc.revisions = new ArrayList<>();
+        bc.renditions = new ArrayList<>();
+        bc.attachments = new ArrayList<>();
+        children = new ArrayList<>();
 
         // add the information object
         try {
-            // make a label for the information object, comprised of a TRIM record type and the record id
-            s = base.tokens[recordTypeCol];
-            if (s == null || s.equals("")) {
-                label = null;
-                // label = recordName;
+            addTrimEntity(bc, renderTrimEntity(bc.cols, base, recordName), cv, depth);
+
+            // find contained entities. All contained entities are assumed to be
+            // in the one source directory (hence are in the TRIM entity list)
+            // Contained entries are those entities that have a container
+            // metadata that matches the current base (this is because the
+            // contained records element is complex). They are linked to their
+            // parent when the export file was read.
+            for (t = store.firstChild[base]; t != EntityStore.NONE; t = store.nextSibling[t]) {
+                processTrimEntity(bc, t, cv, store.field(t, bc.cols.idCol).trim(), depth + 1, veoName);
+            }
+        } catch (VEOError ve) {
+            cv.abandon(true);
+            throw ve;
+        } finally {
+            // free everything about processing that XML document
+            if (bc.revisions != null) {
+                for (i = 0; i < bc.revisions.size(); i++) {
+                    bc.revisions.get(i).free();
+                }
+                bc.revisions = null;
+            }
+            if (bc.renditions != null) {
+                for (i = 0; i < bc.renditions.size(); i++) {
+                    bc.renditions.get(i).free();
+                }
+                bc.renditions = null;
+            }
+            children.clear();
+            if (bc.attachments != null) {
+                bc.attachments.clear();
+                bc.attachments = null;
+            }
+        }
+    }
+
+    /**
+     * Render a TRIM entity: generate its metadata and reference its content
+     * file (resolving it if it has not been seen before). This does not
+     * change the VEO, so TRIM entities can be rendered on any thread and in
+     * any order (-forkJoin). A failure is recorded in the rendered entity and
+     * thrown when the entity is added to the VEO, so that the VEO fails at
+     * the same point as it would if the entity had been rendered as it was
+     * added.
+     *
+     * @param cols the columns of the export file
+     * @param base the index of the TRIM entity
+     * @param recordName the name of the Information Object to be produced
+     * @return the rendered entity
+     */
+    private RenderedEntity renderTrimEntity(ExportColumns cols, int base, String recordName) {
+        RenderedEntity r;
+        URI uri;
+        String s;
+        long start;
+
+        r = new RenderedEntity(base, recordName);
+
+        // make a label for the information object, comprised of a TRIM record type and the record id
+        s = store.field(base, cols.recordTypeCol);
+        if (s == null || s.equals("")) {
+            r.label = null;
+            // label = recordName;
+        } else {
+            r.label = "Cabinet-in-Confidence Departmental Working Records: " + store.recordType(base);
+        }
+
+        // the AGLS metadata
+        try {
+            if (rdfIdPrefix == null) {
+                uri = new URI("file", null, "/" + recordName, null);
             } else {
-                label = "Cabinet-in-Confidence Departmental Working Records: " + base.recordType;
+                uri = new URI(rdfIdPrefix, null, "/" + recordName, null);
+            }
+            r.uri = uri.toASCIIString();
+        } catch (URISyntaxException use) {
+            r.failure = new VEOError("Failed building URI when generating RDF: " + use.toString());
+            return r;
+        }
+        try {
+            start = System.nanoTime();
+            r.agls = makeAGLSmetadata(cols, base);
+            aglsTime.since(start);
+        } catch (AppError ae) {
+            r.failure = ae;
+            return r;
+        }
+
+        // the TRIM metadata
+        start = System.nanoTime();
+        r.trimMetadata = makeTrimMetadata(cols, base);
+        trimTime.since(start);
+
+        // the final version of record
+        r.contentFile = contentFileName(base);
+        if (r.contentFile != null) {
+            r.type = types.classify(r.contentFile);
+            r.content = contentFiles.reference(r.contentFile);
+        }
+        return r;
+    }
+
+    /**
+     * Read ahead a content file when TRIM entities are rendered in parallel
+     * (-forkJoin). The file is read and the data discarded, so that when
+     * CreateVEO reads the file again (one file at a time, as the entities are
+     * added to the VEO) it is likely to come from the page cache. Large files
+     * are not read ahead, as they would push the other files of the VEO out
+     * of the cache. A file that cannot be read is ignored here; the failure
+     * is reported when the file is added to the VEO.
+     *
+     * @param content the content file
+     */
+    private void prefetch(ContentRegistry.Content content) {
+        byte[] buf;
+        long start;
+
+        if (content.error != null || content.size < 0 || content.size > PREFETCH_SIZE) {
+            return;
+        }
+        try {
+            openContent();
+        } catch (VEOError ve) {
+            return;
+        }
+        start = System.nanoTime();
+        buf = new byte[64 * 1024];
+        try (InputStream is = Files.newInputStream(content.path)) {
+            while (is.read(buf) != -1) {
+                // discard
             }
+        } catch (IOException ioe) {
+            LOG.log(Level.FINE, "Content file ''{0}'' could not be read ahead: {1}", new Object[]{content.path.toString(), ioe.getMessage()});
+        } finally {
+            closeContent();
+        }
+        prefetchTime.since(start);
+    }
+
+    /**
+     * Add a rendered TRIM entity to the VEO (but not the entities it
+     * contains)
+     *
+     * @param bc the state of the VEO being built
+     * @param r the rendered TRIM entity
+     * @param cv the VEO being created
+     * @param depth the depth of the Information Object
+     * @throws VEOError if an error occurred that prevented the processing of
+     * this XML file
+     */
+    private void addTrimEntity(BuildContext bc, RenderedEntity r, CreateVEO cv, int depth) throws VEOError, AppError {
+        String[] data = {};
+        String veoRef;
+        ContentRegistry.Content content;
+        long start;
+        Path p;
+
+        // create information object
+        cv.addInformationObject(r.label, depth);
+
+        // add the AGLS metadata package
+        cv.addMetadataPackage("http://prov.vic.gov.au/vers/schema/AGLS", "http://www.w3.org/1999/02/22-rdf-syntax-ns", null);
+        cv.continueMetadataPackage(" <rdf:RDF xmlns:dcterms=\"http://purl.org/dc/terms/\"\n");
+        cv.continueMetadataPackage("\txmlns:aglsterms=\"http://www.agls.gov.au/agls/terms/\"\n");
+        cv.continueMetadataPackage("\txmlns:versterms=\"http://www.prov.vic.gov.au/vers/terms/\">\n");
+        cv.continueMetadataPackage(" <rdf:Description rdf:about=\"");
+        if (r.uri == null) {
+            failed(r);
+        }
+        cv.continueMetadataPackage(r.uri);
+        cv.continueMetadataPackage("\">\n");
+        if (r.agls == null) {
+            failed(r);
+        }
+        cv.continueMetadataPackage(r.agls);
+        if (aglsCommon != null) {
+            cv.continueMetadataPackage(aglsCommon, data);
+        }
+        cv.continueMetadataPackage(" </rdf:Description>\n</rdf:RDF>\n");
+
+        // add metadata package containing TRIM metadata
+        cv.addMetadataPackage("http://prov.vic.gov.au/vers/schema/TRIM", "https://www.w3.org/TR/2008/REC-xml-20081126/", r.trimMetadata);
+
+        // add final version of record and any encodings (renditions in TRIM speak)
+        if (r.contentFile != null) {
+            if (r.content == null) {
+                failed(r);
+            }
+
+            // add an information piece with a single content file
+            veoRef = (r.recordName.replace('/', '-') + "/" + r.contentFile);
+            p = r.content.path;
+            try {
+                cv.addInformationPiece(null);
+                openContent();
+                start = System.nanoTime();
+                try {
+                    cv.addContentFile(veoRef, p);
+                } finally {
+                    closeContent();
+                }
+                contentTime.since(start);
+                if (direct) {
+                    bc.directFiles.add(new DirectFile(veoRef, p, r.type));
+                }
+            } catch (VEOError e) {
+                throw new VEOError("Information Object " + store.name(r.te) + " is incomplete because: " + e.getMessage());
+            }
+
+            // if the content file wasn't a valid long term preservation
+            // format, add a dummy content file with a .txt content
+            if (!r.type.ltsf) {
+                LOG.log(Level.WARNING, "File ''{0}'' has no long term sustainable format", new Object[]{p.toString()});
+                content = getDummyLTSF();
+                contentFiles.reference(content);
+                veoRef = (r.recordName.replace('/', '-') + "/DummyContentFile.txt");
+                openContent();
+                start = System.nanoTime();
+                try {
+                    cv.addContentFile(veoRef, content.path);
+                } finally {
+                    closeContent();
+                }
+                contentTime.since(start);
+                if (direct) {
+                    bc.directFiles.add(new DirectFile(veoRef, content.path, types.classify(veoRef)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Throw the failure recorded when a TRIM entity was rendered
+     */
+    private void failed(RenderedEntity r) throws VEOError, AppError {
+        if (r.failure instanceof AppError) {
+            throw (AppError) r.failure;
+        }
+        throw (VEOError) r.failure;
+    }
+
+    /**
+     * Add a subtree of rendered TRIM entities to the VEO, in depth first
+     * order (-forkJoin)
+     *
+     * @param bc the state of the VEO being built
+     * @param r the rendered TRIM entity at the top of the subtree
+     * @param cv the VEO being created
+     * @param depth the depth of the Information Object
+     * @throws VEOError if an error occurred that prevented the processing of
+     * this XML file
+     */
+    private void addSubtree(BuildContext bc, RenderedEntity r, CreateVEO cv, int depth) throws VEOError, AppError {
+        int i;
 
-            // create information object
-            cv.addInformationObject(label, depth);
+        addTrimEntity(bc, r, cv, depth);
+        for (i = 0; i < r.children.size(); i++) {
+            addSubtree(bc, r.children.get(i), cv, depth + 1);
+        }
+    }
 
-            // add the AGLS metadata package
-            cv.addMetadataPackage("http://prov.vic.gov.au/vers/schema/AGLS", "http://www.w3.org/1999/02/22-rdf-syntax-ns", null);
-            cv.continueMetadataPackage(" <rdf:RDF xmlns:dcterms=\"http://purl.org/dc/terms/\"\n");
-            cv.continueMetadataPackage("\txmlns:aglsterms=\"http://www.agls.gov.au/agls/terms/\"\n");
-            cv.continueMetadataPackage("\txmlns:versterms=\"http://www.prov.vic.gov.au/vers/terms/\">\n");
-            cv.continueMetadataPackage(" <rdf:Description rdf:about=\"");
-            try {
-                if (rdfIdPrefix == null) {
-                    uri = new URI("file", null, "/" + recordName, null);
-                } else {
-                    uri = new URI(rdfIdPrefix, null, "/" + recordName, null);
-                }
-                cv.continueMetadataPackage(uri.toASCIIString());
-            } catch (URISyntaxException use) {
-                throw new VEOError("Failed building URI when generating RDF: " + use.toString());
-            }
-            cv.continueMetadataPackage("\">\n");
-            cv.continueMetadataPackage(makeAGLSmetadata(base));
-            if (aglsCommon != null) {
-                cv.continueMetadataPackage(aglsCommon, data);
-            }
-            cv.continueMetadataPackage(" </rdf:Description>\n</rdf:RDF>\n");
-
-            // add metadata package containing TRIM metadata
-            cv.addMetadataPackage("http://prov.vic.gov.au/vers/schema/TRIM", "https://www.w3.org/TR/2008/REC-xml-20081126/", makeTrimMetadata(base));
-
-            // add final version of record and any encodings (renditions in TRIM speak)
-            if (base.contentFile != null && !base.contentFile.equals("")) {
-
-                // get the content files for this TRIM entity. There will be two
-                // file names, separated by a '|'. The first is the internal TRIM
-                // file name, the second appears to be the original file name.
-                // We use the second one...
-                contents = base.contentFile.replace('|', '\t').split("\t");
-                if (contents.length == 2) {
-                    i = 1;
-                } else {
-                    i = 0;
-                }
+    /**
+     * Count the TRIM entities in a subtree, stopping once the count reaches a
+     * limit
+     *
+     * @param te the TRIM entity at the top of the subtree
+     * @param limit the count at which to stop
+     * @return the number of entities (at most the limit)
+     */
+    private int subtreeSize(int te, int limit) {
+        int n, t;
 
-                // add an information piece with a single content file
-                String veoRef = (recordName.replace('/', '-') + "/" + contents[i]);
-                p = contentDirectory.resolve(contents[i]);
-                try {
-                    cv.addInformationPiece(null);
-                    cv.addContentFile(veoRef, p);
-                } catch (VEOError e) {
-                    throw new VEOError("Information Object " + base.name + " is incomplete because: " + e.getMessage());
-                }
+        n = 1;
+        for (t = store.firstChild[te]; t != EntityStore.NONE && n < limit; t = store.nextSibling[t]) {
+            n += subtreeSize(t, limit - n);
+        }
+        return n;
+    }
 
-                // if the content file wasn't a valid long term preservation
-                // format, add a dummy content file with a .txt content
-                if (!isLTPF(contents[i])) {
-                    LOG.log(Level.WARNING, "File ''{0}'' has no long term sustainable format", new Object[]{p.toString()});
-                    if (dummyLTSFCF == null) {
-                        p = sourceDirectory.resolve("DummyContentFile.txt");
-                        try {
-                            try (FileWriter fw = new FileWriter(p.toAbsolutePath().toString()); BufferedWriter bw = new BufferedWriter(fw)) {
-                                bw.write("This Information Piece has no content in an approved long term preservation format\n");
-                            }
-                            dummyLTSFCF = p;
-                        } catch (IOException ioe) {
-                            throw new VEOError("Failed attempting to add DummyContentFile: " + ioe.getMessage());
-                        }
-                    }
-                    veoRef = (recordName.replace('/', '-') + "/DummyContentFile.txt");
-                    cv.addContentFile(veoRef, dummyLTSFCF);
-                }
-            }
+    /**
+     * Estimate the cost of building the VEO for a root entity from the number
+     * of TRIM entities in it and the total size of their content files. A
+     * content file that is not in the content directory counts as empty. The
+     * estimate is only used to decide the order in which VEOs are started, so
+     * it need only be roughly proportional to the time taken.
+     *
+     * @param root the root TRIM entity
+     * @return the estimated cost
+     */
+    private RootCost estimateCost(int root) {
+        RootCost rc;
 
-            // find contained entities. All contained entities are assumed to be
-            // in the one source directory (hence are in the TRIM entity list)
-            // Contained entries are found by looking for entities that have a
-            // container metadata that matches the current base. This is because
-            // the contained records element is complex
-            TrimID ti = base.id;
-            teKeys = entities.keySet().iterator();
-            while (teKeys.hasNext()) {
-                s = teKeys.next();
-                t = entities.get(s);
-                if (t.container != null && t.container.equals(ti)) {
-                    processTrimEntity(t, entities, cv, t.tokens[idCol].trim(), depth + 1, veoName);
-                }
+        rc = new RootCost(root);
+        addCost(rc, root);
+        rc.estimate = rc.entities * ENTITY_COST + rc.bytes;
+        return rc;
+    }
+
+    /**
+     * Add the entities in a subtree, and their content files, to a cost
+     * estimate
+     */
+    private void addCost(RootCost rc, int te) {
+        ContentIndex.Entry e;
+        String name;
+        int t;
+
+        rc.entities++;
+        if ((name = contentFileName(te)) != null && (e = contentIndex.find(name)) != null) {
+            rc.bytes += e.size;
+        }
+        for (t = store.firstChild[te]; t != EntityStore.NONE; t = store.nextSibling[t]) {
+            addCost(rc, t);
+        }
+    }
+
+    /**
+     * Get the dummy content file that is added when a content file is not in a
+     * long term sustainable format. The same file is used by every VEO in the
+     * run. It is generated in memory the first time it is needed, digested,
+     * and written to a temporary file in the local temporary directory (not
+     * the source directory, which is often read only or on a slow network
+     * share). The temporary file is deleted at the end of the run. VEOs may
+     * be being built concurrently, so the file is created under a lock.
+     *
+     * @return the dummy content file
+     * @throws VEOError if the file could not be written
+     */
+    private ContentRegistry.Content getDummyLTSF() throws VEOError {
+        byte[] b;
+        Path p;
+
+        if (dummyLTSF != null) {
+            return dummyLTSF;
+        }
+        dummyLock.lock();
+        try {
+            if (dummyLTSF != null) {
+                return dummyLTSF;
             }
-        } catch (VEOError ve) {
-            cv.abandon(true);
-            throw ve;
+            b = "This Information Piece has no content in an approved long term preservation format\n".getBytes(StandardCharsets.UTF_8);
+            p = Files.createTempFile("DummyContentFile", ".txt");
+            Files.write(p, b);
+            dummyLTSF = contentFiles.register(p, b.length);
+        } catch (IOException e) {
+            throw new VEOError("Failed attempting to add DummyContentFile: " + e.getMessage());
         } finally {
-            // free everything about processing that XML document
-            if (revisions != null) {
-                for (i = 0; i < revisions.size(); i++) {
-                    revisions.get(i).free();
-                }
-                revisions = null;
+            dummyLock.unlock();
+        }
+        return dummyLTSF;
+    }
+
+    /**
+     * Get the name of the content file of a TRIM entity. There will be two
+     * file names, separated by a '|'. The first is the internal TRIM file
+     * name, the second appears to be the original file name. We use the
+     * second one...
+     *
+     * @param te the index of the TRIM entity
+     * @return the name of the content file, or null if there isn't one
+     */
+    private String contentFileName(int te) {
+        String[] contents;
+
+        if (store.contentFile[te] == null || store.contentFile[te].equals("")) {
+            return null;
+        }
+        contents = store.contentFile[te].replace('|', '\t').split("\t");
+        if (contents.length == 2) {
+            return contents[1];
+        }
+        return contents[0];
+    }
+
+    /**
+     * Check the content files of the TRIM entities read from an export file
+     * before any VEO is built. The content files are checked concurrently on
+     * the pool of checkers (see ContentCheck). Each TRIM entity whose content
+     * file has a problem is reported, and, if requested, the root entity of
+     * the VEO it would be in is excluded from being built. The content files
+     * of VEOs built by an earlier run (-resume) are not checked.
+     *
+     * @param order the TRIM entities read from an export file
+     */
+    private void checkContent(int[] order) {
+        String[] names, problems;
+        int[] roots;
+        String id;
+        int i;
+
+        names = new String[order.length];
+        roots = new int[order.length];
+        for (i = 0; i < order.length; i++) {
+            roots[i] = rootOf(order[i], order.length);
+            if (roots[i] != EntityStore.NONE && store.is(roots[i], EntityStore.EXPORTED)) {
+                continue;
             }
-            if (renditions != null) {
-                for (i = 0; i < renditions.size(); i++) {
-                    renditions.get(i).free();
-                }
-                renditions = null;
+            names[i] = contentFileName(order[i]);
+        }
+        try {
+            problems = contentCheck.check(names, checkers);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            LOG.log(Level.SEVERE, "Interrupted while checking the content files");
+            return;
+        }
+        for (i = 0; i < order.length; i++) {
+            if (problems[i] == null) {
+                continue;
             }
-            children.clear();
-            if (attachments != null) {
-                attachments.clear();
-                attachments = null;
+
+            id = trimIds.toString(store.ids[order[i]]);
+            LOG.log(Level.WARNING, "Content file ''{0}'' of ''{1}'' {2}", new Object[]{names[i], id, problems[i]});
+            if (roots[i] == EntityStore.NONE) {
+                contentCheck.record(id, "", names[i], problems[i]);
+                continue;
+            }
+            contentCheck.record(id, trimIds.toString(store.ids[roots[i]]), names[i], problems[i]);
+            if (excludeBadContent) {
+                store.set(roots[i], EntityStore.EXCLUDED);
             }
         }
     }
 
     /**
-     * Test to see if file is a LTPF The file extension is extracted from the
-     * filename and looked up in the array of valid LTPFs
+     * Find the root of the VEO a TRIM entity would be in, by following the
+     * links to the containing entities. The containers of an entity can loop
+     * back on themselves (e.g. an entity that names itself as its container,
+     * or two entities that contain each other); such an entity is in no VEO.
+     * As an entity has only one container, a walk longer than the number of
+     * entities must be in such a loop.
+     *
+     * @param te the TRIM entity
+     * @param limit the number of entities read from the export file
+     * @return the root entity, or NONE if the containers loop
      */
-    private boolean isLTPF(String filename) {
-        String filetype;
+    private int rootOf(int te, int limit) {
         int i;
 
-        if ((i = filename.lastIndexOf('.')) == -1) {
-            return false;
+        for (i = 0; i < limit; i++) {
+            if (store.parent[te] == EntityStore.NONE) {
+                return te;
+            }
+            te = store.parent[te];
         }
-        filetype = filename.substring(i).toLowerCase();
-        return ltsf.isV3LTSF(filetype);
+        return EntityStore.NONE;
     }
 
     /**
@@ -1127,41 +2336,42 @@ public class TrimProcessV3CSV {
     /**
      * Make the main (AGLS) metadata package
      *
+     * @param cols the columns of the export file the entity came from
      * @param e the TRIM entity to extract metadata from
      */
-    private String makeAGLSmetadata(TrimEntity e) throws AppError {
+    private String makeAGLSmetadata(ExportColumns cols, int e) throws AppError {
         StringBuffer sb;
 
         sb = new StringBuffer();
         sb.append(" <dcterms:title>");
-        sb.append(XMLencode(e.tokens[titleCol]));
+        sb.append(XMLencode(store.field(e, cols.titleCol)));
         sb.append("</dcterms:title>\n");
         // case "trim/record/datecreated":
         sb.append(" <dcterms:created rdf:datatype=\"xsd:dateTime\">");
-        sb.append(processDate(e.tokens[dateCreatedCol]));
+        sb.append(processDate(store.field(e, cols.dateCreatedCol)));
         sb.append("</dcterms:created>\n");
         // case "trim/record/recordtype":
         sb.append(" <dcterms:type>");
-        sb.append(XMLencode(e.tokens[recordTypeCol]));
+        sb.append(XMLencode(store.field(e, cols.recordTypeCol)));
         sb.append("</dcterms:type>\n");
         sb.append(" <dcterms:description>");
-        sb.append(XMLencode(e.recordType));
+        sb.append(XMLencode(store.recordType(e)));
         sb.append("</dcterms:description>\n");
         // case "trim/record/container":
         /*
         sb.append(" <dcterms:isPart>");
-        sb.append(XMLencode(e.tokens[isPartCol]));
+        sb.append(XMLencode(store.field(e, cols.isPartCol)));
         sb.append("</dcterms:isPart>\n");
          */
  /*
         // case "trim/record/classification":
-        currentEntity.classification = e.tokens[titleCol];
+        currentEntity.classification = store.field(e, cols.titleCol);
         // case "trim/record/dateregistered":
-        currentEntity.dateRegistered = processDate(e.tokens[titleCol]);
+        currentEntity.dateRegistered = processDate(store.field(e, cols.titleCol));
          */
         // case "trim/record/longnumber":
         sb.append(" <dcterms:identifier>");
-        sb.append(XMLencode(e.tokens[idCol]));
+        sb.append(XMLencode(store.field(e, cols.idCol)));
         sb.append("</dcterms:identifier>\n");
         return sb.toString();
     }
@@ -1169,19 +2379,21 @@ public class TrimProcessV3CSV {
     /**
      * Make TRIM metadata This simply outputs the TRIM metadata into XML
      */
-    private StringBuilder makeTrimMetadata(TrimEntity e) {
+    private StringBuilder makeTrimMetadata(ExportColumns cols, int e) {
         StringBuilder sb, sb1;
+        String[] labels;
         String s;
         int i, j;
         char c;
 
+        labels = cols.labels;
         sb = new StringBuilder();
         for (i = 0; i < labels.length; i++) {
             if (labels[i] == null || labels[i].equals("")) {
                 continue;
             }
             // temporarily don't output empty elements
-            if (i >= e.tokens.length || e.tokens[i] == null || e.tokens[i].equals("")) {
+            if (store.fieldEmpty(e, i)) {
                 continue;
             }
 
@@ -1199,11 +2411,11 @@ public class TrimProcessV3CSV {
             // output metadata as XML
             sb.append("   <");
             sb.append(s);
-            if (i >= e.tokens.length || e.tokens[i] == null || e.tokens[i].equals("")) {
+            if (store.fieldEmpty(e, i)) {
                 sb.append("/>\n");
             } else {
                 sb.append(">");
-                sb.append(XMLencode(e.tokens[i]));
+                sb.append(XMLencode(store.field(e, i)));
                 sb.append("</");
                 sb.append(s);
                 sb.append(">\n");
@@ -1266,6 +2478,205 @@ public class TrimProcessV3CSV {
 
     }
 
+    /**
+     * ExportColumns
+     *
+     * Private class to represent the columns of a TRIM export file: the
+     * column labels, and the columns in which the metadata elements used to
+     * build the VEOs are found. Once the export file has been read this is
+     * only read, so it can be shared by VEOs being built concurrently.
+     */
+    private class ExportColumns {
+
+        String[] labels;        // list of column labels taken from the TRIM export file being processed
+        int idCol;              // column in which to find the TRIM entity identifier
+        int containerCol;       // column in which to find the container reference
+        int containedCol;       // column in which to find the contained entities
+        int titleCol;           // column in which the title is found
+        int classificationCol;  // column in which the classification is found
+        int dateCreatedCol;     // column in which the date the entity was created is found
+        int dateRegisteredCol;  // column in which the date the entity was registered is found
+        int recordTypeCol;      // column in which the record type is found
+        int isPartCol;          // column in which the 'is part' info is found
+        int docFileCol;         // column in which the attached file is to be found
+        int retSchCol;          // column in which the retention schedule is to be found
+
+        public ExportColumns() {
+            labels = null;
+            idCol = -1;
+            containerCol = -1;
+            containedCol = -1;
+            titleCol = -1;
+            classificationCol = -1;
+            dateCreatedCol = -1;
+            dateRegisteredCol = -1;
+            recordTypeCol = -1;
+            isPartCol = -1;
+            docFileCol = -1;
+            retSchCol = -1;
+        }
+    }
+
+    /**
+     * BuildContext
+     *
+     * Private class to hold the state of a VEO while it is being built. Each
+     * VEO has its own context, so that VEOs can be built concurrently.
+     */
+    private class BuildContext {
+
+        ExportColumns cols;     // columns of the export file the VEO is built from
+        int base;               // index of the root TRIM entity of the VEO
+        String recordName;      // name of the VEO
+        CreateVEO cv;           // the VEO being created (null until rendered)
+        long veoStart;          // time (ns) the VEO started being built
+        boolean admitted;       // true if the heap monitor has admitted the VEO (pipeline)
+        CompletableFuture<Void> done; // completed when the VEO has been built or has failed (pipeline)
+        RootCost cost;          // estimated cost of the VEO (actual time recorded when built)
+        Path veoDirectory;      // directory representing the VEO
+        ArrayList<Embedded> revisions; // the revisions
+        ArrayList<Embedded> renditions; // the renditions
+        ArrayList<String> attachments; // attachments to emails
+        ArrayList<DirectFile> directFiles; // content files to stream into the zip (-direct)
+        long packageWait;       // time (ns) spent waiting to read content files while writing the zip (-direct)
+        ByteArrayOutputStream baos; // scratch buffer
+
+        public BuildContext(ExportColumns cols) {
+            this.cols = cols;
+            base = -1;
+            recordName = null;
+            cv = null;
+            veoStart = 0;
+            admitted = false;
+            done = new CompletableFuture<>();
+            cost = null;
+            veoDirectory = null;
+            revisions = null;
+            renditions = null;
+            attachments = null;
+            directFiles = new ArrayList<>();
+            packageWait = 0;
+            baos = new ByteArrayOutputStream();
+        }
+    }
+
+    /**
+     * Private class to represent a TRIM entity that has been rendered (its
+     * metadata generated and its content file referenced), but not yet added
+     * to the VEO
+     */
+    private class RenderedEntity {
+
+        int te;             // index of the TRIM entity
+        String recordName;  // name of the Information Object
+        String label;       // label of the Information Object (null if none)
+        String uri;         // RDF identifier (null if it could not be built)
+        String agls;        // AGLS metadata (null if it could not be generated)
+        StringBuilder trimMetadata; // TRIM metadata
+        String contentFile; // name of the content file (null if none)
+        ContentTypes.Type type; // type of the content file
+        ContentRegistry.Content content; // the content file (null if not referenced)
+        Exception failure;  // the VEOError or AppError that stopped rendering (null if none)
+        ArrayList<RenderedEntity> children; // the rendered children (-forkJoin)
+
+        public RenderedEntity(int te, String recordName) {
+            this.te = te;
+            this.recordName = recordName;
+            label = null;
+            uri = null;
+            agls = null;
+            trimMetadata = null;
+            contentFile = null;
+            type = null;
+            content = null;
+            failure = null;
+            children = null;
+        }
+    }
+
+    /**
+     * Private class to render a subtree of TRIM entities in parallel
+     * (-forkJoin). The subtree of each child is rendered as a separate task
+     * while this entity is rendered (and its content file read ahead), and the
+     * results are kept in the order of the children so that the subtree can be
+     * added to the VEO in depth first order.
+     */
+    private class SubtreeRenderer extends RecursiveTask<RenderedEntity> {
+
+        private static final long serialVersionUID = 1L;
+        ExportColumns cols; // columns of the export file
+        int te;             // TRIM entity at the top of the subtree
+        String recordName;  // name of its Information Object
+
+        public SubtreeRenderer(ExportColumns cols, int te, String recordName) {
+            this.cols = cols;
+            this.te = te;
+            this.recordName = recordName;
+        }
+
+        @Override
+        protected RenderedEntity compute() {
+            ArrayList<SubtreeRenderer> tasks;
+            RenderedEntity r;
+            int i, t;
+
+            tasks = new ArrayList<>();
+            for (t = store.firstChild[te]; t != EntityStore.NONE; t = store.nextSibling[t]) {
+                tasks.add(new SubtreeRenderer(cols, t, store.field(t, cols.idCol).trim()));
+            }
+            for (i = 0; i < tasks.size(); i++) {
+                tasks.get(i).fork();
+            }
+            r = renderTrimEntity(cols, te, recordName);
+            if (r.content != null) {
+                prefetch(r.content);
+            }
+            r.children = new ArrayList<>(tasks.size());
+            for (i = 0; i < tasks.size(); i++) {
+                r.children.add(tasks.get(i).join());
+            }
+            return r;
+        }
+    }
+
+    /**
+     * Private class to represent a content file to be streamed into a VEO zip
+     * file when building directly
+     */
+    private class DirectFile {
+
+        String veoRef;      // name of the file in the VEO
+        Path source;        // the content file
+        ContentTypes.Type type; // type of the content file (decides whether it is stored or deflated)
+
+        public DirectFile(String veoRef, Path source, ContentTypes.Type type) {
+            this.veoRef = veoRef;
+            this.source = source;
+            this.type = type;
+        }
+    }
+
+    /**
+     * Private class to hold the estimated and actual cost of building the VEO
+     * for a root entity
+     */
+    private class RootCost {
+
+        int te;             // index of the root TRIM entity
+        int entities;       // number of TRIM entities in the VEO
+        long bytes;         // total size of their content files
+        long estimate;      // estimated cost (see estimateCost())
+        long actual;        // time (ns) taken to build the VEO (-1 if not built)
+
+        public RootCost(int te) {
+            this.te = te;
+            entities = 0;
+            bytes = 0;
+            estimate = 0;
+            actual = -1;
+        }
+    }
+
     /**
      * Private class to represent an embedded document
      */
@@ -1301,24 +2712,51 @@ public class TrimProcessV3CSV {
      * children
      */
     public void report() {
-        Iterator<String> it;
+        int[] order;
         boolean anyFound;
-        TrimEntity te;
+        int i, te;
 
         // Ouput report
         LOG.log(Level.SEVERE, "");
         LOG.log(Level.SEVERE, "RESULT OF PROCESSING TRIM EXPORT");
-        LOG.log(Level.SEVERE, "Total records (VEOs) created: {0}", new Object[]{exportCount});
+        LOG.log(Level.SEVERE, "Total records (VEOs) created: {0}", new Object[]{exportCount.get()});
+        if (resume) {
+            LOG.log(Level.SEVERE, "Records (VEOs) built by an earlier run: {0}", new Object[]{resumedCount.get()});
+        }
+        LOG.log(Level.SEVERE, "Child index: {0} parents, {1} children, built in {2} ms", new Object[]{indexParents, indexChildren, indexBuildTime});
+        LOG.log(Level.INFO, "Column {0}", classifications.describe());
+        LOG.log(Level.INFO, "Column {0}", recordTypes.describe());
+        LOG.log(Level.INFO, "Column {0}", retentionSchedules.describe());
+        if (heapMonitor != null) {
+            heapMonitor.report();
+        }
+        if (stages != null) {
+            for (i = 0; i < stages.length; i++) {
+                stages[i].report(buildElapsed);
+            }
+        }
+        if (forkJoin) {
+            LOG.log(Level.SEVERE, "Fork-join: {0} large VEOs had their TRIM entities rendered in parallel", new Object[]{forkJoined.get()});
+        }
+        if (contentFiles != null) {
+            contentFiles.report();
+        }
+        if (contentCheck != null) {
+            contentCheck.report();
+        }
+        if (compression != null) {
+            compression.report();
+        }
         LOG.log(Level.SEVERE, "");
 
         // Report on root entities
-        it = allEntities.keySet().iterator();
+        order = store.sortById(allEntities.values());
         anyFound = false;
         LOG.log(Level.INFO, "VEOs generated:");
-        while (it.hasNext()) {
-            te = allEntities.get(it.next());
-            if (te.exported) {
-                LOG.log(Level.INFO, "\t{0} in {1}", new Object[]{te.id, te.dir.toString()});
+        for (i = 0; i < order.length; i++) {
+            te = order[i];
+            if (store.is(te, EntityStore.EXPORTED)) {
+                LOG.log(Level.INFO, "\t{0} in {1}", new Object[]{trimIds.toString(store.ids[te]), store.dir(store.file[te]).toString()});
                 // System.out.println("\t" + te.id + " " + te.dateCreated + " (" + te.title + ")");
                 anyFound = true;
             }
@@ -1333,6 +2771,87 @@ public class TrimProcessV3CSV {
         produceCVS("AllEntities.txt", false, false);
         // Reports on all root entities exported
         produceCVS("AllFiles.txt", true, true);
+        // Report on the content files referenced
+        if (contentFiles != null) {
+            contentFiles.write(Paths.get(outputDirectory.toString(), "ContentFiles.txt"));
+        }
+        // Report on the problems found with the content files
+        if (contentCheck != null) {
+            contentCheck.write(Paths.get(outputDirectory.toString(), "ContentProblems.txt"));
+        }
+        // Report on the time taken by each stage of processing
+        produceTimings("StageTimings.txt");
+        // Report on the estimated and actual cost of building each VEO
+        produceCosts("BuildCosts.txt");
+    }
+
+    /*
+     * Produce a tab separated report of the time taken by each stage of
+     * processing. Each line gives the number of times the stage was run, the
+     * total time (ms), and the 50th, 95th, and 99th percentile and maximum
+     * times (microseconds).
+     * @param filename the report to generate (in the output directory)
+     */
+    private void produceTimings(String filename) {
+        LatencyHistogram[] stages = {parseTime, checkTime, aglsTime, trimTime, openWaitTime, prefetchTime, contentTime, finishTime, signTime, finaliseTime, veoTime};
+        FileWriter fw;
+        BufferedWriter bw;
+        Path rep;
+        int i;
+
+        rep = Paths.get(outputDirectory.toString(), filename);
+        try {
+            fw = new FileWriter(rep.toFile());
+            bw = new BufferedWriter(fw);
+
+            bw.write("Stage\tCount\tTotal (ms)\tp50 (us)\tp95 (us)\tp99 (us)\tMax (us)\r\n");
+            for (i = 0; i < stages.length; i++) {
+                bw.write(stages[i].name() + "\t" + stages[i].count() + "\t" + (stages[i].total() / 1000)
+                        + "\t" + stages[i].percentile(0.50) + "\t" + stages[i].percentile(0.95)
+                        + "\t" + stages[i].percentile(0.99) + "\t" + stages[i].max() + "\r\n");
+                LOG.log(Level.INFO, "Stage ''{0}'': {1} runs, p50 {2} us, p95 {3} us, p99 {4} us, max {5} us", new Object[]{stages[i].name(), stages[i].count(), stages[i].percentile(0.50), stages[i].percentile(0.95), stages[i].percentile(0.99), stages[i].max()});
+            }
+            bw.close();
+            fw.close();
+        } catch (IOException ioe) {
+            System.out.println("Error creating timing report (" + filename + "): " + ioe.getMessage());
+        }
+    }
+
+    /*
+     * Produce a tab separated report of the estimated and actual cost of
+     * building each VEO, in the order the VEOs were started. Each line gives
+     * the number of TRIM entities in the VEO, the total size of their content
+     * files, the estimated cost, and the time taken to build the VEO (ms;
+     * blank if it was not built).
+     * @param filename the report to generate (in the output directory)
+     */
+    private void produceCosts(String filename) {
+        FileWriter fw;
+        BufferedWriter bw;
+        Path rep;
+        RootCost rc;
+        int i;
+
+        rep = Paths.get(outputDirectory.toString(), filename);
+        try {
+            fw = new FileWriter(rep.toFile());
+            bw = new BufferedWriter(fw);
+
+            bw.write("ID\tEntities\tContent (bytes)\tEstimate\tBuild time (ms)\r\n");
+            for (i = 0; i < rootCosts.size(); i++) {
+                rc = rootCosts.get(i);
+                bw.write(trimIds.toString(store.ids[rc.te]) + "\t" + rc.entities + "\t" + rc.bytes + "\t" + rc.estimate + "\t");
+                if (rc.actual >= 0) {
+                    bw.write(Long.toString(rc.actual / 1000000));
+                }
+                bw.write("\r\n");
+            }
+            bw.close();
+            fw.close();
+        } catch (IOException ioe) {
+            System.out.println("Error creating build cost report (" + filename + "): " + ioe.getMessage());
+        }
     }
 
     /*
@@ -1342,11 +2861,11 @@ public class TrimProcessV3CSV {
      * @param onlyRoot true if only report on exported root TRIM entities
      */
     private void produceCVS(String filename, boolean onlyExported, boolean onlyRoot) {
-        Iterator<String> it;
+        int[] order;
         FileWriter fw;
         BufferedWriter bw;
         Path rep;
-        TrimEntity te;
+        int i, te;
 
         rep = Paths.get(outputDirectory.toString(), filename);
         try {
@@ -1354,43 +2873,43 @@ public class TrimProcessV3CSV {
             bw = new BufferedWriter(fw);
 
             bw.write("ID\tVEO Name\tContainer\tTitle\tDate Created\tDate Registered\tClassification\tRecord Type\r\n");
-            it = allEntities.keySet().iterator();
-            while (it.hasNext()) {
-                te = allEntities.get(it.next());
-                if (onlyExported && !te.exported) {
+            order = store.sortById(allEntities.values());
+            for (i = 0; i < order.length; i++) {
+                te = order[i];
+                if (onlyExported && !store.is(te, EntityStore.EXPORTED)) {
                     continue;
                 }
-                if (onlyExported && onlyRoot && !te.root) {
+                if (onlyExported && onlyRoot && !store.is(te, EntityStore.ROOT)) {
                     continue;
                 }
-                bw.write(te.id.toString());
+                bw.write(trimIds.toString(store.ids[te]));
                 bw.write("\t");
-                if (te.veoName != null) {
-                    bw.write(te.veoName);
+                if (store.veoName[te] != null) {
+                    bw.write(store.veoName[te]);
                 }
                 bw.write("\t");
-                if (te.container != null) {
-                    bw.write(te.container.toString());
+                if (store.container[te] != TrimIdCodec.NONE) {
+                    bw.write(trimIds.toString(store.container[te]));
                 }
                 bw.write("\t");
-                if (te.title != null) {
-                    bw.write(te.title);
+                if (store.title[te] != null) {
+                    bw.write(store.title[te]);
                 }
                 bw.write("\t");
-                if (te.dateCreated != null) {
-                    bw.write(te.dateCreated);
+                if (store.dateCreated[te] != null) {
+                    bw.write(store.dateCreated[te]);
                 }
                 bw.write("\t");
-                if (te.dateRegistered != null) {
-                    bw.write(te.dateRegistered);
+                if (store.dateRegistered[te] != null) {
+                    bw.write(store.dateRegistered[te]);
                 }
                 bw.write("\t");
-                if (te.classification != null) {
-                    bw.write(te.classification);
+                if (store.classification(te) != null) {
+                    bw.write(store.classification(te));
                 }
                 bw.write("\t");
-                if (te.recordType != null) {
-                    bw.write(te.recordType);
+                if (store.recordType(te) != null) {
+                    bw.write(store.recordType(te));
                 }
                 bw.write("\r\n");
             }
@@ -1477,40 +2996,313 @@ public class TrimProcessV3CSV {
     }
 
     /**
-     * TrimEntity
+     * EntityStore
      *
-     * Private class to represent a Trim Entity. Used to detect TRIM entities
-     * that are referenced, but which do not exist, and entities that exist, but
-     * are neither root element, nor referenced.
+     * Private class to hold the TRIM entities. Rather than an object for each
+     * entity, the store keeps one array for each attribute of the entities,
+     * and an entity is identified by its index in the arrays. This keeps the
+     * entities of a large export in a handful of large arrays instead of
+     * millions of small objects. The store is also used to detect TRIM
+     * entities that are referenced, but which do not exist, and entities that
+     * exist, but are neither root element, nor referenced.
+     * <p>
+     * The parent and children of each entity are linked by index (firstChild
+     * and nextSibling), so the tree of entities can be walked without any
+     * lookups.
+     * <p>
+     * The fields of the line in the export file that defined each entity are
+     * kept as offsets (the start of the line, and the end of each field), and
+     * a field is only converted into a String when it is asked for. The
+     * offsets of all the entities are kept in one pooled array.
+     * <p>
+     * Entities may be added by only one thread at a time. Once the entities
+     * have been added and linked, the attributes may be read concurrently
+     * (the flags are updated under the store lock).
      */
-    private class TrimEntity {
-
-        TrimID id;          // id of TRIM entity
-        String name;        // name of the TRIM entity (i.e. id converted to be safe)
-        boolean root;       // true if a root entity
-        boolean referenced; // true if referenced by another TRIM entity
-        boolean defined;    // true if this entity exists
-        boolean exported;   // true if entity was exported into a VEO
-        StringBuffer referencedBy; // list of TRIM entity that reference this element
-        String[] tokens;    // metadata about entity
-        ArrayList<String> refs; // list of other TRIM entities this entity references
-        Path dir;           // directory in which this TRIM entity is to be found
-        String veoName;
-        TrimID container;
-        String title;
-        String dateCreated;
-        String dateRegistered;
-        String classification;
-        String recordType;
-        String retentionSchedule;
-        String contentFile;
-
-        public TrimEntity(String id, String[] tokens, Path dir) throws Error {
+    private class EntityStore {
+
+        final static int NONE = -1; // code or index used when there is no value
+        final static byte ROOT = 1; // entity is a root entity
+        final static byte REFERENCED = 2; // entity is referenced by another TRIM entity
+        final static byte DEFINED = 4; // entity exists
+        final static byte EXPORTED = 8; // entity was exported into a VEO
+        final static byte EXCLUDED = 16; // root entity not to be built because of content problems
+
+        int size;               // number of entities in the store
+        long[] ids;             // encoded id of each TRIM entity
+        byte[] flags;           // ROOT, REFERENCED, DEFINED, EXPORTED and EXCLUDED flags
+        int[] file;             // file (index in readers) the entity was read from
+        int[] parent;           // index of the containing entity (NONE if not linked)
+        int[] firstChild;       // index of the first contained entity (NONE if no children)
+        int[] nextSibling;      // index of the next entity with the same parent (NONE if last)
+        long[] container;       // encoded id of the container (TrimIdCodec.NONE if not contained)
+        int[] classification;   // code in the classifications dictionary
+        int[] recordType;       // code in the record types dictionary
+        int[] retentionSchedule; // code in the retention schedules dictionary
+        String[] veoName;
+        String[] title;
+        String[] dateCreated;
+        String[] dateRegistered;
+        String[] contentFile;
+        long[] lineStart;       // byte offset of the start of the line in the export file
+        int[] fieldsStart;      // index in ends of the end of the first field
+        int[] fieldCount;       // number of fields in the line
+        int[] ends;             // character offset (from the line start) of the end of each field (pooled)
+        int endsSize;           // number of offsets used in ends
+        ArrayList<TrimExportReader> readers; // readers of the export files
+        ArrayList<Path> dirs;   // directory containing each export file
+        ArrayList<ExportColumns> columns; // columns of each export file
+
+        public EntityStore() {
+            size = 0;
+            ids = new long[1024];
+            flags = new byte[1024];
+            file = new int[1024];
+            parent = new int[1024];
+            firstChild = new int[1024];
+            nextSibling = new int[1024];
+            container = new long[1024];
+            classification = new int[1024];
+            recordType = new int[1024];
+            retentionSchedule = new int[1024];
+            veoName = new String[1024];
+            title = new String[1024];
+            dateCreated = new String[1024];
+            dateRegistered = new String[1024];
+            contentFile = new String[1024];
+            lineStart = new long[1024];
+            fieldsStart = new int[1024];
+            fieldCount = new int[1024];
+            ends = new int[16 * 1024];
+            endsSize = 0;
+            readers = new ArrayList<>();
+            dirs = new ArrayList<>();
+            columns = new ArrayList<>();
+        }
+
+        /**
+         * Register an export file that entities will be read from.
+         *
+         * @param ter the reader of the file
+         * @param dir the directory containing the file
+         * @param cols the columns of the file
+         * @return the number of the file in the store
+         */
+        public int addFile(TrimExportReader ter, Path dir, ExportColumns cols) {
+            readers.add(ter);
+            dirs.add(dir);
+            columns.add(cols);
+            return readers.size() - 1;
+        }
+
+        public Path dir(int fileNo) {
+            return dirs.get(fileNo);
+        }
+
+        public ExportColumns cols(int fileNo) {
+            return columns.get(fileNo);
+        }
+
+        /**
+         * Add an entity read from a line of an export file.
+         *
+         * @param fileNo the number of the file the line was read from
+         * @param row the line
+         * @param id the id of the entity
+         * @return the index of the entity
+         */
+        public int add(int fileNo, TrimExportReader.Fields row, long id) {
+            int i;
+
+            i = newEntity(fileNo, id, row.count);
+            lineStart[i] = row.lineStart;
+            System.arraycopy(row.ends, 0, ends, fieldsStart[i], row.count);
+            return i;
+        }
+
+        /**
+         * Copy an entity from another store (e.g. one used to read a chunk of
+         * an export file).
+         *
+         * @param from the store to copy from
+         * @param j the index of the entity in that store
+         * @param fileNo the number of the file in this store
+         * @return the index of the entity in this store
+         */
+        public int copy(EntityStore from, int j, int fileNo) {
+            int i;
+
+            i = newEntity(fileNo, from.ids[j], from.fieldCount[j]);
+            lineStart[i] = from.lineStart[j];
+            System.arraycopy(from.ends, from.fieldsStart[j], ends, fieldsStart[i], from.fieldCount[j]);
+            update(i, from, j);
+            return i;
+        }
+
+        /**
+         * Update an entity with the metadata from a later line in the export
+         * file with the same id. The location of the fields is not changed.
+         *
+         * @param i the index of the entity to update
+         * @param from the store holding the entity read from the later line
+         * @param j the index of that entity
+         */
+        public void update(int i, EntityStore from, int j) {
+            flags[i] |= from.flags[j] & DEFINED;
+            veoName[i] = from.veoName[j];
+            if (from.container[j] != TrimIdCodec.NONE) {
+                container[i] = from.container[j];
+            }
+            title[i] = from.title[j];
+            dateCreated[i] = from.dateCreated[j];
+            contentFile[i] = from.contentFile[j];
+            dateRegistered[i] = from.dateRegistered[j];
+            classification[i] = from.classification[j];
+            recordType[i] = from.recordType[j];
+            retentionSchedule[i] = from.retentionSchedule[j];
+        }
+
+        /**
+         * Allocate a new entity, growing the arrays if necessary.
+         */
+        private int newEntity(int fileNo, long id, int count) {
+            int i, n;
+
+            if (size == ids.length) {
+                n = size * 2;
+                ids = Arrays.copyOf(ids, n);
+                flags = Arrays.copyOf(flags, n);
+                file = Arrays.copyOf(file, n);
+                parent = Arrays.copyOf(parent, n);
+                firstChild = Arrays.copyOf(firstChild, n);
+                nextSibling = Arrays.copyOf(nextSibling, n);
+                container = Arrays.copyOf(container, n);
+                classification = Arrays.copyOf(classification, n);
+                recordType = Arrays.copyOf(recordType, n);
+                retentionSchedule = Arrays.copyOf(retentionSchedule, n);
+                veoName = Arrays.copyOf(veoName, n);
+                title = Arrays.copyOf(title, n);
+                dateCreated = Arrays.copyOf(dateCreated, n);
+                dateRegistered = Arrays.copyOf(dateRegistered, n);
+                contentFile = Arrays.copyOf(contentFile, n);
+                lineStart = Arrays.copyOf(lineStart, n);
+                fieldsStart = Arrays.copyOf(fieldsStart, n);
+                fieldCount = Arrays.copyOf(fieldCount, n);
+            }
+            if (endsSize + count > ends.length) {
+                ends = Arrays.copyOf(ends, Math.max(ends.length * 2, endsSize + count));
+            }
+            i = size;
+            size++;
+            ids[i] = id;
+            flags[i] = 0;
+            file[i] = fileNo;
+            parent[i] = NONE;
+            firstChild[i] = NONE;
+            nextSibling[i] = NONE;
+            container[i] = TrimIdCodec.NONE;
+            classification[i] = NONE;
+            recordType[i] = NONE;
+            retentionSchedule[i] = NONE;
+            fieldsStart[i] = endsSize;
+            fieldCount[i] = count;
+            endsSize += count;
+            return i;
+        }
+
+        /**
+         * Get a field from the line that defined an entity. A field beyond
+         * the end of the line is returned as an empty string.
+         *
+         * @param i the index of the entity
+         * @param col the field (column) number
+         * @return the value of the field
+         */
+        public String field(int i, int col) {
+            int s, e;
+
+            if (col < 0 || col >= fieldCount[i]) {
+                return "";
+            }
+            s = col == 0 ? 0 : ends[fieldsStart[i] + col - 1] + 1;
+            e = ends[fieldsStart[i] + col];
+            return readers.get(file[i]).string(lineStart[i] + ((long) s << 1), e - s);
+        }
+
+        /**
+         * Test if a field is empty (or beyond the end of the line) without
+         * converting it into a String.
+         *
+         * @param i the index of the entity
+         * @param col the field (column) number
+         * @return true if the field is empty
+         */
+        public boolean fieldEmpty(int i, int col) {
+            int s;
+
+            if (col < 0 || col >= fieldCount[i]) {
+                return true;
+            }
+            s = col == 0 ? 0 : ends[fieldsStart[i] + col - 1] + 1;
+            return s == ends[fieldsStart[i] + col];
+        }
+
+        /**
+         * Sort a range of entities by id.
+         *
+         * @param from the index of the first entity
+         * @param to the index after the last entity
+         * @return the indexes of the entities, sorted by id
+         */
+        public int[] sortById(int from, int to) {
+            int[] a;
+            int i;
+
+            a = new int[to - from];
+            for (i = 0; i < a.length; i++) {
+                a[i] = from + i;
+            }
+            return sortById(a);
+        }
+
+        /**
+         * Sort entities by id. The entities are ordered by the id as it
+         * appeared in the export file, which is the order in which they have
+         * always been processed and reported.
+         *
+         * @param entities the indexes of the entities
+         * @return the indexes of the entities, sorted by id
+         */
+        public int[] sortById(int[] entities) {
+            Integer[] a;
+            int[] sorted;
+            int i;
+
+            a = new Integer[entities.length];
+            for (i = 0; i < a.length; i++) {
+                a[i] = entities[i];
+            }
+            Arrays.sort(a, (x, y) -> veoName[x].trim().compareTo(veoName[y].trim()));
+            sorted = new int[a.length];
+            for (i = 0; i < a.length; i++) {
+                sorted[i] = a[i];
+            }
+            return sorted;
+        }
+
+        /**
+         * Get the name of an entity (i.e. id converted to be safe)
+         *
+         * @param i the index of the entity
+         * @return the name
+         */
+        public String name(int i) {
             StringBuilder sb;
+            String id;
             int j;
             char c;
 
-            this.id = new TrimID(id);
+            id = trimIds.toString(ids[i]);
             sb = new StringBuilder();
             for (j = 0; j < id.length(); j++) {
                 c = id.charAt(j);
@@ -1520,88 +3312,59 @@ public class TrimProcessV3CSV {
                     sb.append('-');
                 }
             }
-            name = sb.toString();
-            root = false;
-            referenced = false;
-            defined = false;
-            exported = false;
-            referencedBy = new StringBuffer();
-            this.tokens = tokens;
-            this.dir = dir;
-            refs = new ArrayList<>();
-            veoName = null;
-            container = null;
-            title = null;
-            dateCreated = null;
-            dateRegistered = null;
-            classification = null;
-            recordType = null;
-            retentionSchedule = null;
-            contentFile = null;
+            return sb.toString();
         }
 
-        @Override
-        public String toString() {
-            StringBuilder sb = new StringBuilder();
-            sb.append("id:" + name);
-            sb.append("\tparent:" + container);
-            sb.append("\ttitle:" + title);
-            sb.append("\tclass:" + classification);
-            sb.append("\tretSch:" + retentionSchedule);
-            return sb.toString();
+        /**
+         * Test a flag of an entity. The flags are not locked. They are set
+         * while the export file is read and checked, before any VEO from it
+         * is built; while VEOs are being built each build only sets the
+         * flags of its own root entity, and the flags it sets are only read
+         * once the build has finished (and its completion has been waited
+         * for).
+         *
+         * @param i the index of the entity
+         * @param flag the flag
+         * @return true if the flag is set
+         */
+        public boolean is(int i, byte flag) {
+            return (flags[i] & flag) != 0;
         }
-    }
 
-    private class TrimID {
+        public void set(int i, byte flag) {
+            flags[i] |= flag;
+        }
 
-        String type;
-        String year;
-        int seq;
+        /**
+         * Get the id of the container of an entity
+         *
+         * @param i the index of the entity
+         * @return the id, or null if the entity is not contained
+         */
+        public String container(int i) {
+            return container[i] == TrimIdCodec.NONE ? null : trimIds.toString(container[i]);
+        }
 
-        public TrimID(String id) throws Error {
-            String[] tokens;
+        public String classification(int i) {
+            return classification[i] == NONE ? null : classifications.get(classification[i]);
+        }
 
-            if (id == null) {
-                throw new Error("Invalid TRIM ID: null pointer");
-            }
-            tokens = id.split("/");
-            if (tokens.length != 3) {
-                throw new Error("Invalid TRIM ID: '" + id + "': doesn't have three parts separated by '/'");
-            }
-            type = tokens[0];
-            switch (tokens[1].length()) {
-                case 2:
-                    year = tokens[1];
-                    break;
-                case 4:
-                    year = tokens[1].substring(2);
-                    break;
-                default:
-                    throw new Error("Invalid TRIM ID: '" + id + "': year is not 2 or 4 digits in length (" + tokens[1] + ")");
-            }
-            try {
-                seq = Integer.parseInt(tokens[2]);
-            } catch (NumberFormatException nfe) {
-                throw new Error("Invalid TRIM ID: '" + id + "': invalid sequence number: " + nfe.toString());
-            }
+        public String recordType(int i) {
+            return recordType[i] == NONE ? null : recordTypes.get(recordType[i]);
         }
 
-        public boolean equals(TrimID i) {
-            if (!i.type.equals(type)) {
-                return false;
-            }
-            if (!i.year.equals(year)) {
-                return false;
-            }
-            if (i.seq != seq) {
-                return false;
-            }
-            return true;
+        public String retentionSchedule(int i) {
+            return retentionSchedule[i] == NONE ? null : retentionSchedules.get(retentionSchedule[i]);
         }
 
-        @Override
-        public String toString() {
-            return type + "/" + year + "/" + seq;
+        public String describe(int i) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("id:" + name(i));
+            sb.append("\tparent:" + container(i));
+            sb.append("\ttitle:" + title[i]);
+            sb.append("\tclass:" + classification(i));
+            sb.append("\tretSch:" + retentionSchedule(i));
+            return sb.toString();
         }
     }
 
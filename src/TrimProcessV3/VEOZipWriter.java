@@ -0,0 +1,820 @@
+package TrimProcessV3;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ *
+ * V E O Z I P W R I T E R
+ *
+ * This class writes a VEO (zip) file directly. It is used instead of
+ * CreateVEO.finalise() when building VEOs directly (-direct). The metadata
+ * files (VEOContent.xml, VEOHistory.xml, the signatures, and the readme) are
+ * still generated and signed by CreateVEO in the VEO directory, and are
+ * copied into the zip unchanged. The content files, which are most of the
+ * bytes in a VEO, are streamed straight from the content directory into the
+ * zip (rather than being copied into the VEO directory and then zipped).
+ * They are not hashed as they are copied, as CreateVEO has already hashed
+ * them for VEOContent.xml.
+ * <p>
+ * This does not stop CreateVEO reading each content file: addContentFile()
+ * reads and hashes the file, and cannot be given the data read here. So each
+ * content byte is read twice (once by CreateVEO, once when it is copied into
+ * the zip) and written once, rather than being read three times and written
+ * twice.
+ * <p>
+ * Content files are stored or deflated according to the compression policy.
+ * A stored entry must have its CRC and size in its local header (a stored
+ * entry followed by a data descriptor cannot be read by, for example,
+ * java.util.zip.ZipInputStream). The size is known before the file is
+ * copied but the CRC is not, so the header is written with a CRC of zero,
+ * the file is copied (calculating its CRC in the same pass), and the CRC is
+ * then written into the header. A deflated entry is followed by a data
+ * descriptor giving its CRC and sizes, so it is simply written in one pass.
+ * Either way, each content file is read once here.
+ * <p>
+ * A content file larger than a threshold is deflated in parallel (in the
+ * same way as pigz): it is divided into blocks that are deflated
+ * independently on a pool of threads, each using the end of the previous
+ * block as its dictionary and ending with a sync flush, so that the blocks
+ * joined in order form one deflate stream. This stops one very large content
+ * file (e.g. a scanned PDF or a video) holding up its VEO while one thread
+ * deflates it.
+ * <p>
+ * The zip file itself is digested as it is written, so the build journal
+ * does not need to read it again. The exception is a stored entry, whose
+ * header is only complete once its data has been written; it is digested by
+ * reading it back from the zip file (normally still in the operating
+ * system's cache) once its CRC is in place.
+ * <p>
+ * Files of any size are streamed through fixed size buffers, so the heap
+ * used does not depend on the size of the content files. Zip64 records are
+ * written for entries of 4GB or more (decided from the size of the file
+ * before it is copied, with room for deflate expanding the data), for
+ * entries that start more than 4GB into the zip file, and for the central
+ * directory of a zip file of more than 4GB or 65535 entries. Other entries
+ * are written without Zip64 records, so small VEOs can be read by any zip
+ * reader.
+ * <p>
+ * All entries are under the directory '&lt;record&gt;.veo/', as in a VEO
+ * produced by CreateVEO. A writer is used by one thread.
+ */
+final class VEOZipWriter implements AutoCloseable {
+
+    private final static int LOCAL_HEADER = 0x04034b50; // zip record signatures
+    private final static int DATA_DESCRIPTOR = 0x08074b50;
+    private final static int CENTRAL_HEADER = 0x02014b50;
+    private final static int END_OF_CENTRAL = 0x06054b50;
+    private final static int ZIP64_END_OF_CENTRAL = 0x06064b50;
+    private final static int ZIP64_LOCATOR = 0x07064b50;
+    private final static int ZIP64_EXTRA = 0x0001; // id of the Zip64 extended information extra field
+    private final static long MAX32 = 0xFFFFFFFFL; // values this large or larger need Zip64
+    private final static long ZIP64_SIZE = 0xF0000000L; // files this large are written as Zip64 entries
+    private final static int STORED = 0;   // compression methods
+    private final static int DEFLATED = 8;
+    private final static int FLAG_DESCRIPTOR = 0x0008; // CRC and sizes follow the data
+    private final static int FLAG_UTF8 = 0x0800; // names are encoded in UTF-8
+    private final static int BLOCK = 1024 * 1024; // size of the blocks deflated in parallel
+    private final static int DICTIONARY = 32 * 1024; // size of the deflate window
+
+    private final Path zip;             // the zip file being written
+    private final String root;          // name of the top directory in the zip (ends in '/')
+    private final CompressionPolicy policy; // decides which content files are stored (null if all are deflated)
+    private final ExecutorService deflaters; // pool deflating large content files (null if not deflating in parallel)
+    private final long parallelSize;    // content files at least this large are deflated in parallel
+    private final MessageDigest zipDigest; // digest of the zip file as it is written
+    private final FileChannel channel;  // the zip file (also used to complete the headers of stored entries)
+    private final DigestOutputStream digester; // digests the zip file as it is written
+    private final CountingOutputStream out; // the zip file being written
+    private final ArrayList<Entry> entries; // entries written (for the central directory)
+    private final Set<String> names;    // names of the entries already in the zip
+    private final byte[] buf;           // buffer used when copying files
+    private final byte[] deflated;      // buffer used when deflating
+    private final Deflater deflater;    // used to deflate entries on this thread
+    private final int dosTime;          // time of the entries (MS-DOS format)
+    private byte[] digest;              // digest of the complete zip file (null until closed)
+
+    /**
+     * Start writing a VEO.
+     *
+     * @param zip the zip file to write (replaced if it exists)
+     * @param veoName the name of the VEO (the top directory in the zip is
+     * veoName.veo)
+     * @param hashAlg the algorithm used to digest the zip file
+     * @param policy the compression policy for content files (null if all
+     * content files are to be deflated)
+     * @param deflaters the pool used to deflate large content files (null if
+     * content files are not to be deflated in parallel)
+     * @param parallelSize content files at least this large are deflated in
+     * parallel
+     * @throws IOException if the zip file could not be created
+     * @throws NoSuchAlgorithmException if the hash algorithm is not supported
+     */
+    VEOZipWriter(Path zip, String veoName, String hashAlg, CompressionPolicy policy, ExecutorService deflaters, long parallelSize) throws IOException, NoSuchAlgorithmException {
+        LocalDateTime now;
+
+        this.zip = zip;
+        this.root = veoName + ".veo/";
+        this.policy = policy;
+        this.deflaters = deflaters;
+        this.parallelSize = parallelSize;
+        zipDigest = MessageDigest.getInstance(hashAlg);
+        channel = FileChannel.open(zip, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        digester = new DigestOutputStream(Channels.newOutputStream(channel), zipDigest);
+        out = new CountingOutputStream(new BufferedOutputStream(digester, 64 * 1024));
+        entries = new ArrayList<>();
+        names = new HashSet<>();
+        buf = new byte[CompressionPolicy.SAMPLE];
+        deflated = new byte[64 * 1024];
+        deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        now = LocalDateTime.now();
+        dosTime = ((now.getYear() - 1980) << 25) | (now.getMonthValue() << 21) | (now.getDayOfMonth() << 16)
+                | (now.getHour() << 11) | (now.getMinute() << 5) | (now.getSecond() >> 1);
+        digest = null;
+        directory(root);
+    }
+
+    /**
+     * Copy the metadata files generated by CreateVEO from the VEO directory.
+     * Files are added in name order; sub directories are copied recursively.
+     *
+     * @param veoDirectory the VEO directory
+     * @param skip the names (relative to the VEO directory, using '/') of
+     * files not to copy (e.g. content files that will be streamed from their
+     * source)
+     * @throws IOException if a file could not be read or written
+     */
+    void addMetadata(Path veoDirectory, Set<String> skip) throws IOException {
+        addMetadata(veoDirectory, "", skip);
+    }
+
+    private void addMetadata(Path dir, String prefix, Set<String> skip) throws IOException {
+        ArrayList<Path> files;
+        String name;
+        int i;
+
+        files = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) {
+                files.add(p);
+            }
+        }
+        Collections.sort(files);
+        for (i = 0; i < files.size(); i++) {
+            name = prefix + files.get(i).getFileName().toString();
+            if (Files.isDirectory(files.get(i))) {
+                directory(root + name + "/");
+                addMetadata(files.get(i), name + "/", skip);
+            } else if (!skip.contains(name)) {
+                try (InputStream is = Files.newInputStream(files.get(i))) {
+                    deflate(entry(root + name, Files.size(files.get(i))), is);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stream a content file into the zip
+     *
+     * @param veoRef the name of the content file in the VEO (relative to the
+     * VEO directory, using '/')
+     * @param source the content file
+     * @param type the type of the content file (decides whether it is stored
+     * or deflated)
+     * @throws IOException if the content file could not be read or written
+     */
+    void addContent(String veoRef, Path source, ContentTypes.Type type) throws IOException {
+        Entry e;
+        long start, cpu, size;
+        int i;
+
+        // make sure the directories containing the file are in the zip
+        i = 0;
+        while ((i = veoRef.indexOf('/', i) + 1) > 0) {
+            directory(root + veoRef.substring(0, i));
+        }
+        if (policy != null && type.mightStore() && store(veoRef, source, type)) {
+            return;
+        }
+        start = policy != null ? policy.cpuTime() : 0;
+        size = Files.size(source);
+        e = entry(root + veoRef, size);
+        try (InputStream is = Files.newInputStream(source)) {
+            if (deflaters != null && size >= parallelSize) {
+                cpu = deflateParallel(e, is);
+            } else {
+                cpu = 0;
+                deflate(e, is);
+            }
+        }
+        if (policy != null) {
+            policy.deflated(e.size, e.csize, policy.cpuTime() - start + cpu);
+        }
+    }
+
+    /**
+     * Store a content file in the zip if the compression policy says to. The
+     * first block of the file is read to check its magic number; if the file
+     * is to be stored, it is then copied in the same pass as its CRC is
+     * calculated, and the CRC is put in the local header afterwards.
+     *
+     * @return true if the file was stored, false if it is to be deflated
+     */
+    private boolean store(String veoRef, Path source, ContentTypes.Type type) throws IOException {
+        Entry e;
+        CRC32 crc;
+        byte[] head;
+        long size, copied;
+        int len, i;
+
+        crc = new CRC32();
+        try (InputStream is = Files.newInputStream(source)) {
+
+            // read the first block and check the magic number
+            len = 0;
+            while (len < buf.length && (i = is.read(buf, len, buf.length - len)) != -1) {
+                len += i;
+            }
+            if (!type.store(buf, len)) {
+                return false;
+            }
+            head = Arrays.copyOf(buf, len);
+
+            // write the local header without the CRC. The zip file is not
+            // digested until the header is complete (see completeHeader())
+            size = Files.size(source);
+            e = entry(root + veoRef, size);
+            e.method = STORED;
+            e.flags = FLAG_UTF8;
+            e.size = size;
+            e.csize = size;
+            out.flush();
+            digester.on(false);
+            writeLocalHeader(e);
+
+            // copy the file, starting with the block already read
+            copied = 0;
+            i = len;
+            do {
+                out.write(buf, 0, i);
+                crc.update(buf, 0, i);
+                copied += i;
+            } while ((i = is.read(buf)) != -1);
+        }
+        if (copied != e.size) {
+            throw new IOException("Content file '" + source.toString() + "' changed while it was being copied");
+        }
+        e.crc = crc.getValue();
+        completeHeader(e);
+        policy.stored(size, head, len);
+        return true;
+    }
+
+    /**
+     * Put the CRC of a stored entry in its local header, once its data has
+     * been written, and then bring the digest of the zip file up to date by
+     * reading the entry back from the zip file
+     */
+    private void completeHeader(Entry e) throws IOException {
+        ByteBuffer bb;
+        long pos;
+        int i;
+
+        out.flush();
+        bb = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        bb.putInt((int) e.crc);
+        bb.flip();
+        pos = e.offset + 14; // offset of the CRC in the local header
+        while (bb.hasRemaining()) {
+            pos += channel.write(bb, pos);
+        }
+        bb = ByteBuffer.wrap(buf);
+        pos = e.offset;
+        while (pos < out.count) {
+            bb.clear();
+            bb.limit((int) Math.min(buf.length, out.count - pos));
+            if ((i = channel.read(bb, pos)) == -1) {
+                throw new IOException("VEO '" + zip.toString() + "' is shorter than was written");
+            }
+            zipDigest.update(buf, 0, i);
+            pos += i;
+        }
+        digester.on(true);
+    }
+
+    /**
+     * Add a directory entry to the zip (if it is not already there)
+     */
+    private void directory(String name) throws IOException {
+        Entry e;
+
+        if (names.contains(name)) {
+            return;
+        }
+        e = entry(name, 0);
+        e.method = STORED;
+        e.flags = FLAG_UTF8;
+        writeLocalHeader(e);
+    }
+
+    /**
+     * Start a new entry
+     *
+     * @param name the name of the entry
+     * @param expected the expected size of the data (decides whether the
+     * entry is written with Zip64 records)
+     */
+    private Entry entry(String name, long expected) throws IOException {
+        Entry e;
+
+        if (!names.add(name)) {
+            throw new IOException("'" + name + "' added twice to VEO '" + zip.toString() + "'");
+        }
+        e = new Entry(name);
+        e.offset = out.count;
+        e.zip64 = expected >= ZIP64_SIZE;
+        entries.add(e);
+        return e;
+    }
+
+    /**
+     * Deflate a file into the zip on this thread
+     */
+    private void deflate(Entry e, InputStream is) throws IOException {
+        CRC32 crc;
+        int i;
+
+        e.method = DEFLATED;
+        e.flags = FLAG_UTF8 | FLAG_DESCRIPTOR;
+        writeLocalHeader(e);
+        crc = new CRC32();
+        deflater.reset();
+        while ((i = is.read(buf)) != -1) {
+            crc.update(buf, 0, i);
+            e.size += i;
+            deflater.setInput(buf, 0, i);
+            while (!deflater.needsInput()) {
+                writeDeflated(e, deflater.deflate(deflated));
+            }
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            writeDeflated(e, deflater.deflate(deflated));
+        }
+        e.crc = crc.getValue();
+        writeDataDescriptor(e);
+    }
+
+    private void writeDeflated(Entry e, int len) throws IOException {
+        out.write(deflated, 0, len);
+        e.csize += len;
+    }
+
+    /**
+     * Deflate a large file into the zip in parallel. Blocks of the file are
+     * read on this thread, deflated on the pool, and written
+     * in order. The number of blocks being deflated at once is limited to
+     * bound the memory used.
+     *
+     * @return the CPU time used by the pool to deflate the file (ns)
+     */
+    private long deflateParallel(Entry e, InputStream is) throws IOException {
+        ArrayDeque<Future<DeflatedBlock>> pending;
+        DeflatedBlock db;
+        CRC32 crc;
+        byte[] block, dictionary;
+        boolean last;
+        long cpu;
+        int len, i, window;
+
+        e.method = DEFLATED;
+        e.flags = FLAG_UTF8 | FLAG_DESCRIPTOR;
+        writeLocalHeader(e);
+        crc = new CRC32();
+        pending = new ArrayDeque<>();
+        window = 2 * Runtime.getRuntime().availableProcessors();
+        dictionary = null;
+        cpu = 0;
+        try {
+            do {
+                // read the next block
+                block = new byte[BLOCK];
+                len = 0;
+                while (len < BLOCK && (i = is.read(block, len, BLOCK - len)) != -1) {
+                    len += i;
+                }
+                last = len < BLOCK;
+                crc.update(block, 0, len);
+                e.size += len;
+
+                // deflate it on the pool
+                final byte[] b = block;
+                final int l = len;
+                final byte[] d = dictionary;
+                final boolean f = last;
+                pending.add(deflaters.submit(() -> deflateBlock(b, l, d, f)));
+                dictionary = Arrays.copyOfRange(block, Math.max(0, len - DICTIONARY), len);
+
+                // write the blocks that have been deflated (in order)
+                while (!pending.isEmpty() && (pending.size() >= window || last || pending.peek().isDone())) {
+                    db = pending.remove().get();
+                    out.write(db.data, 0, db.len);
+                    e.csize += db.len;
+                    cpu += db.cpu;
+                }
+            } while (!last);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while deflating '" + e.name + "'");
+        } catch (ExecutionException ee) {
+            throw new IOException("Failed deflating '" + e.name + "': " + ee.getCause().toString());
+        } finally {
+            while (!pending.isEmpty()) {
+                pending.remove().cancel(true);
+            }
+        }
+        e.crc = crc.getValue();
+        writeDataDescriptor(e);
+        return cpu;
+    }
+
+    /**
+     * Deflate one block of a file. All but the last block end with a sync
+     * flush, so that the deflated blocks can simply be joined together.
+     *
+     * @param block the block
+     * @param len the number of bytes in the block
+     * @param dictionary the end of the previous block (null if this is the
+     * first block)
+     * @param last true if this is the last block of the file
+     * @return the deflated block
+     */
+    private DeflatedBlock deflateBlock(byte[] block, int len, byte[] dictionary, boolean last) {
+        ByteArrayOutputStream bos;
+        Deflater d;
+        byte[] b;
+        long start;
+        int n;
+
+        start = policy != null ? policy.cpuTime() : 0;
+        bos = new ByteArrayOutputStream(len / 2 + 64);
+        b = new byte[64 * 1024];
+        d = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            if (dictionary != null) {
+                d.setDictionary(dictionary);
+            }
+            d.setInput(block, 0, len);
+            if (last) {
+                d.finish();
+                while (!d.finished()) {
+                    n = d.deflate(b);
+                    bos.write(b, 0, n);
+                }
+            } else {
+                do {
+                    n = d.deflate(b, 0, b.length, Deflater.SYNC_FLUSH);
+                    bos.write(b, 0, n);
+                } while (n == b.length || !d.needsInput());
+            }
+        } finally {
+            d.end();
+        }
+        return new DeflatedBlock(bos.toByteArray(), bos.size(), policy != null ? policy.cpuTime() - start : 0);
+    }
+
+    /**
+     * Write the local header of an entry
+     */
+    private void writeLocalHeader(Entry e) throws IOException {
+        writeInt(LOCAL_HEADER);
+        writeShort(version(e));
+        writeShort(e.flags);
+        writeShort(e.method);
+        writeInt(dosTime);
+        writeInt((e.flags & FLAG_DESCRIPTOR) != 0 ? 0 : e.crc);
+        if (e.zip64) {
+            writeInt(MAX32);
+            writeInt(MAX32);
+        } else if ((e.flags & FLAG_DESCRIPTOR) != 0) {
+            writeInt(0);
+            writeInt(0);
+        } else {
+            writeInt(e.csize);
+            writeInt(e.size);
+        }
+        writeShort(e.nameBytes.length);
+        writeShort(e.zip64 ? 20 : 0);
+        out.write(e.nameBytes);
+
+        // the sizes are in the Zip64 extra field (or, if they are not yet
+        // known, in the data descriptor)
+        if (e.zip64) {
+            writeShort(ZIP64_EXTRA);
+            writeShort(16);
+            writeLong((e.flags & FLAG_DESCRIPTOR) != 0 ? 0 : e.size);
+            writeLong((e.flags & FLAG_DESCRIPTOR) != 0 ? 0 : e.csize);
+        }
+    }
+
+    /**
+     * The version of the zip specification needed to extract an entry
+     */
+    private static int version(Entry e) {
+        if (e.zip64 || e.offset >= MAX32) {
+            return 45;
+        }
+        return e.method == DEFLATED ? 20 : 10;
+    }
+
+    /**
+     * Write the data descriptor following a deflated entry
+     */
+    private void writeDataDescriptor(Entry e) throws IOException {
+        checkSize(e);
+        writeInt(DATA_DESCRIPTOR);
+        writeInt(e.crc);
+        if (e.zip64) {
+            writeLong(e.csize);
+            writeLong(e.size);
+        } else {
+            writeInt(e.csize);
+            writeInt(e.size);
+        }
+    }
+
+    /**
+     * An entry that was not started as a Zip64 entry must have sizes that fit
+     * in 32 bits. This can only fail if the file grew while it was being
+     * copied.
+     */
+    private void checkSize(Entry e) throws IOException {
+        if (!e.zip64 && (e.size >= MAX32 || e.csize >= MAX32)) {
+            throw new IOException("'" + e.name + "' grew to more than 4GB while it was being added to VEO '" + zip.toString() + "'");
+        }
+    }
+
+    /**
+     * Write the central directory and the end of central directory record
+     */
+    private void writeCentralDirectory() throws IOException {
+        Entry e;
+        long start, end;
+        int i, extra;
+
+        start = out.count;
+        for (i = 0; i < entries.size(); i++) {
+            e = entries.get(i);
+            checkSize(e);
+
+            // values that do not fit in 32 bits go in the Zip64 extra field
+            extra = 0;
+            if (e.zip64 || e.size >= MAX32) {
+                extra += 8;
+            }
+            if (e.zip64 || e.csize >= MAX32) {
+                extra += 8;
+            }
+            if (e.offset >= MAX32) {
+                extra += 8;
+            }
+            writeInt(CENTRAL_HEADER);
+            writeShort(version(e)); // version made by (MS-DOS)
+            writeShort(version(e)); // version needed to extract
+            writeShort(e.flags);
+            writeShort(e.method);
+            writeInt(dosTime);
+            writeInt(e.crc);
+            writeInt(e.zip64 || e.csize >= MAX32 ? MAX32 : e.csize);
+            writeInt(e.zip64 || e.size >= MAX32 ? MAX32 : e.size);
+            writeShort(e.nameBytes.length);
+            writeShort(extra > 0 ? extra + 4 : 0); // extra field length
+            writeShort(0);  // comment length
+            writeShort(0);  // disk number
+            writeShort(0);  // internal attributes
+            writeInt(0);    // external attributes
+            writeInt(e.offset >= MAX32 ? MAX32 : e.offset);
+            out.write(e.nameBytes);
+            if (extra > 0) {
+                writeShort(ZIP64_EXTRA);
+                writeShort(extra);
+                if (e.zip64 || e.size >= MAX32) {
+                    writeLong(e.size);
+                }
+                if (e.zip64 || e.csize >= MAX32) {
+                    writeLong(e.csize);
+                }
+                if (e.offset >= MAX32) {
+                    writeLong(e.offset);
+                }
+            }
+        }
+        end = out.count;
+
+        // write the Zip64 end of central directory record and locator if
+        // the central directory cannot be described without them
+        if (entries.size() >= 0xFFFF || start >= MAX32 || end - start >= MAX32) {
+            writeInt(ZIP64_END_OF_CENTRAL);
+            writeLong(44);      // size of the rest of this record
+            writeShort(45);     // version made by
+            writeShort(45);     // version needed to extract
+            writeInt(0);        // number of this disk
+            writeInt(0);        // disk with the central directory
+            writeLong(entries.size());
+            writeLong(entries.size());
+            writeLong(end - start);
+            writeLong(start);
+            writeInt(ZIP64_LOCATOR);
+            writeInt(0);        // disk with the Zip64 end of central directory
+            writeLong(end);
+            writeInt(1);        // total number of disks
+        }
+        writeInt(END_OF_CENTRAL);
+        writeShort(0);      // number of this disk
+        writeShort(0);      // disk with the central directory
+        writeShort(Math.min(entries.size(), 0xFFFF));
+        writeShort(Math.min(entries.size(), 0xFFFF));
+        writeInt(Math.min(end - start, MAX32));
+        writeInt(Math.min(start, MAX32));
+        writeShort(0);      // comment length
+    }
+
+    private void writeShort(int v) throws IOException {
+        out.write(v & 0xff);
+        out.write((v >>> 8) & 0xff);
+    }
+
+    private void writeInt(long v) throws IOException {
+        out.write((int) (v & 0xff));
+        out.write((int) ((v >>> 8) & 0xff));
+        out.write((int) ((v >>> 16) & 0xff));
+        out.write((int) ((v >>> 24) & 0xff));
+    }
+
+    private void writeLong(long v) throws IOException {
+        writeInt(v & MAX32);
+        writeInt(v >>> 32);
+    }
+
+    /**
+     * Get the size of the zip file
+     *
+     * @return the number of bytes written (complete once closed)
+     */
+    long size() {
+        return out.count;
+    }
+
+    /**
+     * Get the digest of the zip file
+     *
+     * @return the digest, or null if the zip has not been closed
+     */
+    byte[] digest() {
+        return digest;
+    }
+
+    /**
+     * Finish writing the zip file
+     *
+     * @throws IOException if the zip file could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (digest != null) {
+            return;
+        }
+        try {
+            writeCentralDirectory();
+        } finally {
+            deflater.end();
+            out.close();
+        }
+        digest = zipDigest.digest();
+    }
+
+    /**
+     * Abandon the zip file, deleting what has been written
+     */
+    void abandon() {
+        deflater.end();
+        try {
+            out.close();
+        } catch (IOException ioe) {
+            /* ignore */
+        }
+        try {
+            Files.deleteIfExists(zip);
+        } catch (IOException ioe) {
+            /* ignore */
+        }
+    }
+
+    /**
+     * An entry in the zip file
+     */
+    private static final class Entry {
+
+        final String name;          // name of the entry
+        final byte[] nameBytes;     // name encoded in UTF-8
+        int method;                 // STORED or DEFLATED
+        int flags;                  // general purpose flags
+        long crc;                   // CRC of the uncompressed data
+        long size;                  // size of the uncompressed data
+        long csize;                 // size of the compressed data
+        long offset;                // offset of the local header in the zip file
+        boolean zip64;              // true if the sizes are in Zip64 records
+
+        Entry(String name) {
+            this.name = name;
+            nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            method = STORED;
+            flags = 0;
+            crc = 0;
+            size = 0;
+            csize = 0;
+            offset = 0;
+            zip64 = false;
+        }
+    }
+
+    /**
+     * A block of a file that has been deflated
+     */
+    private static final class DeflatedBlock {
+
+        final byte[] data;          // the deflated data
+        final int len;              // number of bytes of deflated data
+        final long cpu;             // CPU time taken to deflate the block (ns)
+
+        DeflatedBlock(byte[] data, int len, long cpu) {
+            this.data = data;
+            this.len = len;
+            this.cpu = cpu;
+        }
+    }
+
+    /**
+     * An output stream that counts the bytes written to it
+     */
+    private static final class CountingOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            this.out = out;
+            count = 0;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package TrimProcessV3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ *
+ * V E O Z I P W R I T E R T E S T
+ *
+ * Tests writing VEO zip files containing a content file of more than 4GB,
+ * which needs Zip64 records, by storing it, deflating it, and deflating it in
+ * parallel. Each zip file is read back with both java.util.zip.ZipFile (which
+ * uses the central directory) and java.util.zip.ZipInputStream (which uses
+ * the local headers).
+ * <p>
+ * The content file is a sparse file of zeros with blocks of random bytes at
+ * the start, across the 4GB boundary, and at the end, so it takes little disk
+ * space. The zip file written when it is stored is not sparse, so the tests
+ * are skipped if there is not enough free space for it.
+ */
+public class VEOZipWriterTest {
+
+    private final static long SIZE = (1L << 32) + 100000; // size of the content file (just over 4GB)
+    private final static int BLOCK = 64 * 1024; // size of the blocks of random bytes
+    private final static String HASH_ALG = "SHA-512"; // algorithm used to digest the zip files
+    private final static String LARGE = "Test.veo/Content/Large.bin"; // name of the large content file in the zip
+    private final static String SMALL = "Test.veo/Content/Small.txt"; // name of a small content file after it
+    private final static byte[] SMALL_CONTENT = "A small content file following the large one\n".getBytes(StandardCharsets.UTF_8);
+
+    private static Path dir;            // directory holding the test files
+    private static Path large;          // the large content file
+    private static Path small;          // the small content file
+    private static long largeCRC;       // CRC of the large content file
+    private static CompressionPolicy policy; // the built in compression policy
+
+    /**
+     * Create the content files, and calculate the CRC of the large one.
+     *
+     * @throws Exception if the files could not be created
+     */
+    @BeforeClass
+    public static void createContent() throws Exception {
+        Random r;
+        byte[] b;
+
+        dir = Files.createTempDirectory("VEOZipWriterTest");
+        Assume.assumeTrue("Not enough free space to write a zip file of more than 4GB", Files.getFileStore(dir).getUsableSpace() > 2 * SIZE);
+        large = dir.resolve("Large.bin");
+        r = new Random(1);
+        b = new byte[BLOCK];
+        try (RandomAccessFile raf = new RandomAccessFile(large.toFile(), "rw")) {
+            raf.setLength(SIZE);
+            r.nextBytes(b);
+            raf.seek(0);
+            raf.write(b);
+            r.nextBytes(b);
+            raf.seek((1L << 32) - BLOCK / 2);
+            raf.write(b);
+            r.nextBytes(b);
+            raf.seek(SIZE - BLOCK);
+            raf.write(b);
+        }
+        small = dir.resolve("Small.txt");
+        Files.write(small, SMALL_CONTENT);
+        policy = new CompressionPolicy(dir.resolve("compression.txt"));
+
+        try (InputStream is = Files.newInputStream(large)) {
+            largeCRC = crc(is, SIZE);
+        }
+    }
+
+    /**
+     * Delete the content files
+     *
+     * @throws IOException if the files could not be deleted
+     */
+    @AfterClass
+    public static void deleteContent() throws IOException {
+        if (dir == null) {
+            return;
+        }
+        if (large != null) {
+            Files.deleteIfExists(large);
+        }
+        if (small != null) {
+            Files.deleteIfExists(small);
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    /**
+     * A large content file that is stored
+     *
+     * @throws Exception if the test failed
+     */
+    @Test
+    public void testStored() throws Exception {
+        test("Stored.zip", new ContentTypes.Type(".bin", true, new byte[0][]), null, ZipEntry.STORED);
+    }
+
+    /**
+     * A large content file that is deflated on one thread
+     *
+     * @throws Exception if the test failed
+     */
+    @Test
+    public void testDeflated() throws Exception {
+        test("Deflated.zip", new ContentTypes.Type(".bin", true, null), null, ZipEntry.DEFLATED);
+    }
+
+    /**
+     * A large content file that is deflated in parallel
+     *
+     * @throws Exception if the test failed
+     */
+    @Test
+    public void testDeflatedInParallel() throws Exception {
+        ExecutorService deflaters;
+
+        deflaters = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            test("Parallel.zip", new ContentTypes.Type(".bin", true, null), deflaters, ZipEntry.DEFLATED);
+        } finally {
+            deflaters.shutdownNow();
+        }
+    }
+
+    /**
+     * Write a zip file containing the large content file followed by the
+     * small one, and check that it reads back correctly
+     *
+     * @param name the name of the zip file
+     * @param type the type of the large content file (decides whether it is
+     * stored or deflated)
+     * @param deflaters the pool deflating in parallel (null if not)
+     * @param method the compression method expected for the large file
+     */
+    private void test(String name, ContentTypes.Type type, ExecutorService deflaters, int method) throws Exception {
+        VEOZipWriter w;
+        Path zip;
+
+        zip = dir.resolve(name);
+        try {
+            w = new VEOZipWriter(zip, "Test", HASH_ALG, policy, deflaters, TrimProcessV3CSV.PARALLEL_DEFLATE_SIZE);
+            try {
+                w.addContent("Content/Large.bin", large, type);
+                w.addContent("Content/Small.txt", small, new ContentTypes.Type(".txt", true, null));
+                w.close();
+            } catch (IOException ioe) {
+                w.abandon();
+                throw ioe;
+            }
+            assertEquals("size of the zip file", Files.size(zip), w.size());
+            assertArrayEquals("digest of the zip file", digest(zip), w.digest());
+            checkZipFile(zip, method);
+            checkZipInputStream(zip, method);
+        } finally {
+            Files.deleteIfExists(zip);
+        }
+    }
+
+    /**
+     * Read the zip file using its central directory
+     */
+    private void checkZipFile(Path zip, int method) throws IOException {
+        ZipEntry ze;
+
+        try (ZipFile zf = new ZipFile(zip.toFile())) {
+            assertEquals("entries", 4, zf.size());
+            assertNotNull("top directory", zf.getEntry("Test.veo/"));
+            assertNotNull("content directory", zf.getEntry("Test.veo/Content/"));
+            ze = zf.getEntry(LARGE);
+            assertNotNull("large content file", ze);
+            assertEquals("method", method, ze.getMethod());
+            assertEquals("size", SIZE, ze.getSize());
+            assertEquals("CRC", largeCRC, ze.getCrc());
+            try (InputStream is = zf.getInputStream(ze)) {
+                assertEquals("CRC of the data", largeCRC, crc(is, SIZE));
+            }
+            ze = zf.getEntry(SMALL);
+            assertNotNull("small content file", ze);
+            try (InputStream is = zf.getInputStream(ze)) {
+                assertArrayEquals("small content file", SMALL_CONTENT, readAll(is));
+            }
+        }
+    }
+
+    /**
+     * Read the zip file using its local headers
+     */
+    private void checkZipInputStream(Path zip, int method) throws IOException {
+        ZipEntry ze;
+
+        try (ZipInputStream zis = new ZipInputStream(Files.newInputStream(zip))) {
+            assertEquals("top directory", "Test.veo/", zis.getNextEntry().getName());
+            assertEquals("content directory", "Test.veo/Content/", zis.getNextEntry().getName());
+            ze = zis.getNextEntry();
+            assertEquals("large content file", LARGE, ze.getName());
+            assertEquals("method", method, ze.getMethod());
+            assertEquals("CRC of the data", largeCRC, crc(zis, SIZE));
+            ze = zis.getNextEntry();
+            assertEquals("small content file", SMALL, ze.getName());
+            assertArrayEquals("small content file", SMALL_CONTENT, readAll(zis));
+            assertNull("no more entries", zis.getNextEntry());
+        }
+    }
+
+    /**
+     * Calculate the CRC of a stream, checking its length
+     */
+    private static long crc(InputStream is, long expected) throws IOException {
+        CRC32 crc;
+        byte[] b;
+        long size;
+        int i;
+
+        crc = new CRC32();
+        b = new byte[BLOCK];
+        size = 0;
+        while ((i = is.read(b)) != -1) {
+            crc.update(b, 0, i);
+            size += i;
+        }
+        assertEquals("length of the data", expected, size);
+        return crc.getValue();
+    }
+
+    /**
+     * Calculate the digest of a file
+     */
+    private static byte[] digest(Path f) throws Exception {
+        MessageDigest md;
+        byte[] b;
+        int i;
+
+        md = MessageDigest.getInstance(HASH_ALG);
+        b = new byte[BLOCK];
+        try (InputStream is = Files.newInputStream(f)) {
+            while ((i = is.read(b)) != -1) {
+                md.update(b, 0, i);
+            }
+        }
+        return md.digest();
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream bos;
+        byte[] b;
+        int i;
+
+        bos = new ByteArrayOutputStream();
+        b = new byte[1024];
+        while ((i = is.read(b)) != -1) {
+            bos.write(b, 0, i);
+        }
+        return bos.toByteArray();
+    }
+}